@@ -0,0 +1,284 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+// Stores, loads and removes many files per Controller round-trip. STORE_BATCH places a whole batch at once and
+// each file then reports "STORE_COMPLETE <file>" on its own; the bytes go out over one connection per DStore,
+// kept open across batches, with every DStore fed in parallel. LOAD_BATCH and REMOVE_BATCH do the same for loads
+// and removes, and LIST_PAGE lists by prefix a page at a time. Compares ingest of many small files against
+// client.jar storing them one at a time, e.g.
+//   java BatchClient <cport> <timeout> <file size KB> <files> <batch size>
+
+public class BatchClient {
+
+    private final int cport;
+    private final int timeout;
+    private final ExecutorService workers;
+    private final Map<Integer, SocketConnection> dStores;
+    private SocketConnection controller;
+
+    public BatchClient(int cport, int timeout) {
+        this.cport = cport;
+        this.timeout = timeout;
+        workers = Workers.create();
+        dStores = new ConcurrentHashMap<>();
+    }
+
+    public static void main(String[] args) throws Exception {
+        var client = new BatchClient(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+        client.connect();
+        var single = new Client(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Logger.LoggingType.NO_LOG);
+        single.connect();
+        var data = new byte[Integer.parseInt(args[2]) * 1024];
+        new Random(42).nextBytes(data);
+        var files = Integer.parseInt(args[3]);
+        var batchSize = Integer.parseInt(args[4]);
+        var start = System.nanoTime();
+        for (int i = 0; i < files; i++) {
+            single.store("single" + i, data);
+        }
+        var singleStore = (System.nanoTime() - start) / 1e9;
+        var names = new ArrayList<String>();
+        start = System.nanoTime();
+        for (int i = 0; i < files; i += batchSize) {
+            var batch = new LinkedHashMap<String, byte[]>();
+            for (int j = i; j < Math.min(files, i + batchSize); j++) {
+                batch.put("batched" + j, data);
+                names.add("batched" + j);
+            }
+            var rejected = client.store(batch);
+            if (!rejected.isEmpty()) throw new IOException("Not stored: " + rejected);
+        }
+        var batchStore = (System.nanoTime() - start) / 1e9;
+        var listed = new int[1];
+        client.list("batched", batchSize, page -> listed[0] += page.size());
+        if (listed[0] != files) throw new IOException("Listed " + listed[0] + " of " + files + " batched files");
+        start = System.nanoTime();
+        for (int i = 0; i < files; i += batchSize) {
+            var loaded = client.load(names.subList(i, Math.min(files, i + batchSize)));
+            for (var e : loaded.entrySet()) {
+                if (!Arrays.equals(data, e.getValue())) throw new IOException(e.getKey() + " loaded wrongly");
+            }
+        }
+        var batchLoad = (System.nanoTime() - start) / 1e9;
+        start = System.nanoTime();
+        for (int i = 0; i < files; i += batchSize) {
+            var missing = client.remove(names.subList(i, Math.min(files, i + batchSize)));
+            if (!missing.isEmpty()) throw new IOException("Not removed: " + missing);
+        }
+        var batchRemove = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("files=%d size=%dKB batch=%d singleStore=%.0f/s batchStore=%.0f/s batchLoad=%.0f/s batchRemove=%.0f/s",
+                files, data.length / 1024, batchSize, files / singleStore, files / batchStore, files / batchLoad, files / batchRemove));
+        single.disconnect();
+        client.disconnect();
+        System.exit(0);
+    }
+
+    public void connect() throws IOException {
+        controller = new SocketConnection(new Socket("localhost", cport));
+        controller.setTimeout(timeout);
+    }
+
+    public void disconnect() {
+        controller.close();
+        dStores.values().forEach(SocketConnection::close);
+        workers.shutdown();
+    }
+
+    // Returns the files that were not stored because they already exist.
+
+    public synchronized List<String> store(Map<String, byte[]> files) throws IOException {
+        var request = new StringBuilder("STORE_BATCH ").append(files.size());
+        files.forEach((name, data) -> request.append(" ").append(name).append(" ").append(data.length));
+        var reply = request(request.toString(), "STORE_TO_BATCH");
+
+        // STORE_TO_BATCH <n> (<file> <k> <port>...)*
+
+        var rejected = new ArrayList<String>();
+        var byDStore = new LinkedHashMap<Integer, List<String>>();
+        var placed = 0;
+        for (int i = 2; i < reply.length; ) {
+            var name = reply[i];
+            var count = Integer.parseInt(reply[i + 1]);
+            if (count == 0) rejected.add(name);
+            else placed++;
+            for (int j = 0; j < count; j++) {
+                byDStore.computeIfAbsent(Integer.parseInt(reply[i + 2 + j]), p -> new ArrayList<>()).add(name);
+            }
+            i += 2 + count;
+        }
+        var sent = new ArrayList<Future<?>>();
+        for (var e : byDStore.entrySet()) {
+            sent.add(workers.submit(() -> {
+                sendFiles(e.getKey(), e.getValue(), files);
+                return null;
+            }));
+        }
+        await(sent);
+        for (int i = 0; i < placed; i++) {
+            var line = readLine();
+            if (!line.startsWith("STORE_COMPLETE ")) throw new IOException("Batch store failed: " + line);
+        }
+        return rejected;
+    }
+
+    // Files that do not exist or could not be read from any replica are left out.
+
+    public synchronized Map<String, byte[]> load(List<String> names) throws IOException {
+        var reply = request("LOAD_BATCH " + names.size() + " " + String.join(" ", names), "LOAD_FROM_BATCH");
+
+        // LOAD_FROM_BATCH <n> (<file> <port> <size>)*
+
+        var res = new ConcurrentHashMap<String, byte[]>();
+        var byDStore = new LinkedHashMap<Integer, Map<String, Integer>>();
+        for (int i = 2; i + 2 < reply.length; i += 3) {
+            var port = Integer.parseInt(reply[i + 1]);
+            if (port != 0) byDStore.computeIfAbsent(port, p -> new LinkedHashMap<>()).put(reply[i], Integer.parseInt(reply[i + 2]));
+        }
+        var fetches = new ArrayList<Future<?>>();
+        for (var e : byDStore.entrySet()) {
+            fetches.add(workers.submit(() -> {
+                fetchFiles(e.getKey(), e.getValue(), res);
+                return null;
+            }));
+        }
+        await(fetches);
+
+        // Whatever a replica failed to serve is retried one file at a time through RELOAD.
+
+        for (var files : byDStore.values()) {
+            for (var name : files.keySet()) {
+                while (!res.containsKey(name)) {
+                    var retry = request("RELOAD " + name, null);
+                    if (!retry[0].equals("LOAD_FROM")) break;
+                    fetchFiles(Integer.parseInt(retry[1]), Map.of(name, Integer.parseInt(retry[2])), res);
+                }
+            }
+        }
+        return res;
+    }
+
+    // Hands each page of files starting with prefix to consumer, in sorted order, without the Controller ever
+    // building or the client ever holding the whole listing.
+
+    public synchronized void list(String prefix, int pageSize, Consumer<List<String>> consumer) throws IOException {
+        String after = null;
+        while (true) {
+            var reply = request("LIST_PAGE " + pageSize + " PREFIX " + prefix + (after == null ? "" : " AFTER " + after), "LIST_PAGE");
+            var page = Arrays.asList(reply).subList(2, reply.length);
+            if (!page.isEmpty()) consumer.accept(page);
+            if (reply[1].equals("END")) return;
+            after = page.get(page.size() - 1);
+        }
+    }
+
+    // Returns the files that did not exist.
+
+    public synchronized List<String> remove(List<String> names) throws IOException {
+        controller.send("REMOVE_BATCH " + names.size() + " " + String.join(" ", names));
+        var missing = new ArrayList<String>();
+        var pending = new HashSet<>(names);
+        while (!pending.isEmpty()) {
+            var reply = readLine().split(" ");
+            switch (reply[0]) {
+                case "REMOVE_COMPLETE" -> pending.remove(reply[1]);
+                case "ERROR_FILE_DOES_NOT_EXIST" -> {
+                    pending.remove(reply[1]);
+                    missing.add(reply[1]);
+                }
+                case "ERROR_NOT_ENOUGH_DSTORES" -> throw new NotEnoughDstoresException();
+                default -> throw new IOException("Batch remove failed: " + String.join(" ", reply));
+            }
+        }
+        return missing;
+    }
+
+    private String[] request(String msg, String expected) throws IOException {
+        controller.send(msg);
+        var reply = readLine().split(" ");
+        if (reply[0].equals("ERROR_NOT_ENOUGH_DSTORES")) throw new NotEnoughDstoresException();
+        if (expected != null && !reply[0].equals(expected)) throw new IOException("Unexpected reply to " + msg.split(" ")[0] + ": " + String.join(" ", reply));
+        return reply;
+    }
+
+    private String readLine() throws IOException {
+        var line = controller.getReader().readLine();
+        if (line == null) throw new IOException("Controller closed the connection");
+        return line;
+    }
+
+    // Each file still waits for the DStore's ACK before its bytes go, so the DStore's line reader never buffers
+    // file contents.
+
+    private void sendFiles(int port, List<String> names, Map<String, byte[]> files) throws IOException {
+        var link = link(port);
+        try {
+            for (var name : names) {
+                var data = files.get(name);
+                link.send("STORE " + name + " " + data.length);
+                if (!"ACK".equals(link.getReader().readLine())) throw new IOException("No ACK from DStore " + port + " for " + name);
+                link.getSocket().getOutputStream().write(data);
+                link.getSocket().getOutputStream().flush();
+            }
+        } catch (IOException e) {
+            dStores.remove(port);
+            link.close();
+            throw e;
+        }
+    }
+
+    private void fetchFiles(int port, Map<String, Integer> files, Map<String, byte[]> res) {
+        SocketConnection link = null;
+        try {
+            link = link(port);
+            var in = new DataInputStream(link.getSocket().getInputStream());
+            for (var e : files.entrySet()) {
+                link.send("LOAD_DATA " + e.getKey() + " 0 " + e.getValue());
+                var data = new byte[e.getValue()];
+                in.readFully(data);
+                res.put(e.getKey(), data);
+            }
+        } catch (IOException e) {
+            System.err.println("Batch load from DStore " + port + " failed: " + e);
+            dStores.remove(port);
+            if (link != null) link.close();
+        }
+    }
+
+    private SocketConnection link(int port) throws IOException {
+        var link = dStores.get(port);
+        if (link == null) {
+            var socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            link = new SocketConnection(socket);
+            link.setTimeout(timeout);
+            dStores.put(port, link);
+        }
+        return link;
+    }
+
+    private static void await(List<Future<?>> futures) throws IOException {
+        for (var future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Batch transfer failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted batch transfer", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Wraps client.jar's Client with a cache of LOAD_FROM answers, file contents and the last LIST, so repeated reads
+// skip both the Controller round trip and the DStore transfer. A second Controller connection subscribes to
+// INVALIDATE pushes, sent whenever a file is stored or starts being removed; entries also expire after ttl ms.
+// Contents are bounded to capacity bytes in LRU order. Stores and removes go straight through to Client, e.g.
+//   java CachingClient <cport> <timeout> <rounds> <file>...
+
+public class CachingClient {
+
+    private final int cport;
+    private final int timeout;
+    private final long capacity;
+    private final long ttl;
+    private final Client client;
+    private final LinkedHashMap<String, Entry> entries;
+    private final BlockingQueue<String> replies;
+    private final Object requests = new Object();
+    private SocketConnection control;
+    private String[] list;
+    private long listedAt;
+    private long bytes;
+    private long epoch;
+    private long hits;
+    private long misses;
+    private long lookups;
+    private long invalidations;
+    private boolean subscribed;
+    private int nextTag;
+
+    public CachingClient(int cport, int timeout, Logger.LoggingType loggingType, long capacity, long ttl) {
+        this.cport = cport;
+        this.timeout = timeout;
+        this.capacity = capacity;
+        this.ttl = ttl;
+        client = new Client(cport, timeout, loggingType);
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        replies = new LinkedBlockingQueue<>();
+    }
+
+    public static void main(String[] args) throws Exception {
+        var client = new CachingClient(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Logger.LoggingType.NO_LOG, 64 << 20, 60_000);
+        client.connect();
+        for (int round = 0, rounds = Integer.parseInt(args[2]); round < rounds; round++) {
+            var start = System.nanoTime();
+            for (int i = 3; i < args.length; i++) {
+                client.load(args[i]);
+            }
+            System.out.println(String.format("round=%d time=%.2fms %s", round, (System.nanoTime() - start) / 1e6, client.getStats()));
+        }
+        client.disconnect();
+    }
+
+    public void connect() throws IOException {
+        client.connect();
+        control = new SocketConnection(new Socket("localhost", cport));
+        var listener = new Thread(this::listen);
+        listener.setDaemon(true);
+        listener.start();
+        if (!"SUBSCRIBED".equals(request("SUBSCRIBE"))) {
+            throw new IOException("Controller did not accept SUBSCRIBE");
+        }
+        synchronized (this) {
+            subscribed = true;
+        }
+    }
+
+    public void disconnect() throws IOException {
+        synchronized (this) {
+            subscribed = false;
+        }
+        client.disconnect();
+        control.close();
+    }
+
+    public String[] list() throws IOException {
+        long seen;
+        synchronized (this) {
+            if (list != null && System.currentTimeMillis() - listedAt < ttl) {
+                hits++;
+                return list.clone();
+            }
+            misses++;
+            seen = epoch;
+        }
+        var res = client.list();
+        synchronized (this) {
+            if (seen == epoch && subscribed) {
+                list = res.clone();
+                listedAt = System.currentTimeMillis();
+            }
+        }
+        return res;
+    }
+
+    public void store(File file) throws IOException {
+        client.store(file);
+        invalidate(file.getName());
+    }
+
+    public void store(String filename, byte[] data) throws IOException {
+        client.store(filename, data);
+        invalidate(filename);
+    }
+
+    // The Controller's push arrives on the other connection, so the local copy is dropped here as well.
+
+    public void remove(String filename) throws IOException {
+        client.remove(filename);
+        invalidate(filename);
+    }
+
+    public void load(String filename, File folder) throws IOException {
+        try (var out = new FileOutputStream(new File(folder, filename))) {
+            out.write(load(filename));
+        }
+    }
+
+    // Tries cached contents, then the cached replica, then asks the Controller, falling back through RELOAD.
+
+    public byte[] load(String filename) throws IOException {
+        Entry entry;
+        long seen;
+        synchronized (this) {
+            entry = entries.get(filename);
+            if (entry != null && System.currentTimeMillis() - entry.fetchedAt >= ttl) {
+                drop(filename);
+                entry = null;
+            }
+            if (entry != null && entry.data != null) {
+                hits++;
+                return entry.data.clone();
+            }
+            misses++;
+            seen = epoch;
+        }
+        if (entry != null) {
+            try {
+                var data = fetch(entry.port, filename, entry.size);
+                remember(filename, entry.port, data, seen);
+                return data.clone();
+            } catch (IOException e) {
+                synchronized (this) {
+                    drop(filename);
+                }
+            }
+        }
+        var reply = request("LOAD " + filename);
+        synchronized (this) {
+            lookups++;
+        }
+        while (true) {
+            var args = reply.split(" ");
+            switch (args[0]) {
+                case "LOAD_FROM" -> {
+                    var port = Integer.parseInt(args[1]);
+                    try {
+                        var data = fetch(port, filename, Integer.parseInt(args[2]));
+                        remember(filename, port, data, seen);
+                        return data.clone();
+                    } catch (IOException e) {
+                        reply = request("RELOAD " + filename);
+                    }
+                }
+                case "ERROR_FILE_DOES_NOT_EXIST" -> throw new FileDoesNotExistException(filename);
+                case "ERROR_NOT_ENOUGH_DSTORES" -> throw new NotEnoughDstoresException();
+                default -> throw new IOException("Loading " + filename + " failed: " + reply);
+            }
+        }
+    }
+
+    public synchronized String getStats() {
+        var requests = hits + misses;
+        return "hits=" + hits + " misses=" + misses + " hitRatio=" + String.format("%.3f", requests == 0 ? 0 : (double) hits / requests)
+                + " controllerLookups=" + lookups + " invalidations=" + invalidations + " entries=" + entries.size() + " bytes=" + bytes;
+    }
+
+    private void listen() {
+        try {
+            var in = control.getReader();
+            String msg;
+            while ((msg = in.readLine()) != null) {
+                if (msg.startsWith("INVALIDATE ")) {
+                    invalidate(msg.substring("INVALIDATE ".length()));
+                } else {
+                    replies.offer(msg);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (subscribed) System.err.println("Lost Controller subscription: " + e);
+            }
+        }
+        synchronized (this) {
+            subscribed = false;
+            entries.clear();
+            list = null;
+            bytes = 0;
+            epoch++;
+        }
+    }
+
+    // Requests are tagged, so a reply that arrives after its request timed out is discarded rather than read
+    // as the answer to the next one.
+
+    private String request(String msg) throws IOException {
+        synchronized (requests) {
+            var tag = "#" + nextTag++ + " ";
+            control.send(tag + msg);
+            try {
+                var deadline = System.currentTimeMillis() + timeout;
+                while (true) {
+                    var reply = replies.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                    if (reply == null) throw new IOException("No reply from Controller to " + msg);
+                    if (reply.startsWith(tag)) return reply.substring(tag.length());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for Controller", e);
+            }
+        }
+    }
+
+    private byte[] fetch(int port, String filename, int size) throws IOException {
+        try (var socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(timeout);
+            var out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("LOAD_DATA " + filename);
+            var data = new byte[size];
+            new DataInputStream(socket.getInputStream()).readFully(data);
+            return data;
+        }
+    }
+
+    // An invalidation since seen means the file changed while it was being fetched, so nothing is kept. Without
+    // a live subscription nothing is cached at all.
+
+    private synchronized void remember(String filename, int port, byte[] data, long seen) {
+        if (seen != epoch || !subscribed) return;
+        drop(filename);
+        var cached = data.length <= capacity / 4 ? data : null;
+        entries.put(filename, new Entry(port, data.length, cached, System.currentTimeMillis()));
+        if (cached == null) return;
+        bytes += cached.length;
+        var it = entries.values().iterator();
+        while (bytes > capacity && it.hasNext()) {
+            var eldest = it.next();
+            if (eldest.data != null) bytes -= eldest.data.length;
+            it.remove();
+        }
+    }
+
+    private synchronized void invalidate(String filename) {
+        epoch++;
+        invalidations++;
+        drop(filename);
+        list = null;
+    }
+
+    private void drop(String filename) {
+        var entry = entries.remove(filename);
+        if (entry != null && entry.data != null) bytes -= entry.data.length;
+    }
+
+    private record Entry(int port, int size, byte[] data, long fetchedAt) {
+    }
+}
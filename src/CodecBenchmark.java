@@ -0,0 +1,61 @@
+import java.util.Arrays;
+import java.util.Random;
+
+// Measures Reed-Solomon encode and decode throughput over in-memory shards, e.g.
+//   java CodecBenchmark <data shards> <parity shards> <shard KB> <seconds>
+//   java CodecBenchmark 4 2 1024 5
+// Throughput counts data bytes per second. Decode drops the first m data shards, the worst case. A warm-up pass
+// of the same length runs first so the JIT has compiled the coding loop before anything is timed.
+
+public class CodecBenchmark {
+
+    public static void main(String[] args) {
+        var k = Integer.parseInt(args[0]);
+        var m = Integer.parseInt(args[1]);
+        var shardSize = Integer.parseInt(args[2]) * 1024;
+        var seconds = Integer.parseInt(args[3]);
+        var codec = new ReedSolomon(k, m);
+        var shards = new byte[k + m][shardSize];
+        var random = new Random(42);
+        for (int i = 0; i < k; i++) {
+            random.nextBytes(shards[i]);
+        }
+        codec.encode(shards, 0, shardSize);
+        var expected = new byte[k + m][];
+        for (int i = 0; i < k + m; i++) {
+            expected[i] = shards[i].clone();
+        }
+        var present = new boolean[k + m];
+        Arrays.fill(present, true);
+        for (int i = 0; i < Math.min(m, k); i++) {
+            present[i] = false;
+        }
+
+        for (var pass : new String[]{"warm-up", "measured"}) {
+            var encode = run(seconds, () -> codec.encode(shards, 0, shardSize));
+            var decode = run(seconds, () -> codec.decode(shards, present, 0, shardSize));
+            if (pass.equals("measured")) {
+                var bytes = (double) k * shardSize;
+                System.out.println(String.format("code=%d+%d shard=%dKB encode=%.2fGB/s decode=%.2fGB/s", k, m, shardSize / 1024,
+                        encode * bytes / (1 << 30), decode * bytes / (1 << 30)));
+            }
+        }
+        for (int i = 0; i < k + m; i++) {
+            if (!Arrays.equals(expected[i], shards[i])) throw new IllegalStateException("Shard " + i + " decoded wrongly");
+        }
+    }
+
+    // Returns operations per second.
+
+    private static double run(int seconds, Runnable op) {
+        var ops = 0L;
+        var start = System.nanoTime();
+        var end = start + seconds * 1_000_000_000L;
+        long now;
+        do {
+            op.run();
+            ops++;
+        } while ((now = System.nanoTime()) < end);
+        return ops / ((now - start) / 1e9);
+    }
+}
@@ -0,0 +1,27 @@
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+interface Connection {
+
+    void send(String msg) throws IOException;
+
+    // Several lines in one write.
+
+    default void send(List<String> msgs) throws IOException {
+        send(String.join("\n", msgs));
+    }
+
+    void setTimeout(int timeout) throws SocketException;
+
+    void close();
+
+    // Switches both directions to binary frames (see Frames); from then on send carries each message as a LINE frame.
+
+    void setFramed();
+
+    boolean isFramed();
+
+    void sendFrame(ByteBuffer frame) throws IOException;
+}
@@ -0,0 +1,68 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Opens a storm of client connections against an in-process Controller and holds them all open,
+// then measures LIST round-trips. Run once per mode and compare, e.g.
+//   java -Ddfs.threads=platform ConnectionStorm 4500 5000
+//   java -Ddfs.threads=virtual ConnectionStorm 4500 5000
+
+public class ConnectionStorm {
+
+    public static void main(String[] args) throws Exception {
+        var cport = Integer.parseInt(args[0]);
+        var connections = Integer.parseInt(args[1]);
+        var rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        new Controller(cport, 1, 5000, 10000).start();
+        Thread.sleep(500);
+
+        var runtime = Runtime.getRuntime();
+        var threads = ManagementFactory.getThreadMXBean();
+        System.gc();
+        var heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+        var sockets = new ArrayList<Socket>(connections);
+        var start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            sockets.add(new Socket(InetAddress.getLoopbackAddress(), cport));
+        }
+        var connectMillis = (System.nanoTime() - start) / 1_000_000.0;
+
+        var pool = Executors.newFixedThreadPool(32);
+        start = System.nanoTime();
+        for (var socket : sockets) {
+            pool.execute(() -> {
+                try {
+                    var out = new PrintWriter(socket.getOutputStream(), true);
+                    var in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    for (int r = 0; r < rounds; r++) {
+                        out.println("LIST");
+                        in.readLine();
+                    }
+                } catch (Exception e) {
+                    System.err.println("Error during storm: " + e);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.MINUTES);
+        var seconds = (System.nanoTime() - start) / 1e9;
+        var heapAfter = runtime.totalMemory() - runtime.freeMemory();
+
+        System.out.println("mode=" + System.getProperty("dfs.threads", "platform") + " io=" + System.getProperty("controller.io", "thread"));
+        System.out.println("connections=" + connections + " connect=" + String.format("%.1f", connectMillis) + "ms");
+        System.out.println("requests=" + (long) connections * rounds + " throughput=" + String.format("%.0f", connections * rounds / seconds) + " req/s");
+        System.out.println("liveThreads=" + threads.getThreadCount() + " peakThreads=" + threads.getPeakThreadCount());
+        System.out.println("heapDelta=" + (heapAfter - heapBefore) / (1024 * 1024) + "MB");
+        for (var socket : sockets) {
+            socket.close();
+        }
+        System.exit(0);
+    }
+}
\ No newline at end of file
@@ -1,24 +1,39 @@
 import java.io.*;
 import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.stream.Collectors;
-
-enum State {
-    STORE_IN_PROGRESS, STORE_COMPLETE, REMOVE_IN_PROGRESS, REMOVE_COMPLETE
-}
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 public class Controller {
 
+    private static final int MAX_LOAD_ATTEMPTS = 64;
+    private static final int CHUNK_SIZE = Integer.getInteger("dfs.chunk.size", 4 << 20);
+
     private final Integer R;
     private final int timeout;
     private final int rebalancePeriod;
     private final int cport;
-    private final Map<Socket, Integer> dStoreMap;
-    private final Set<Socket> clients;
+    private final Map<Connection, Integer> dStoreMap;
+    private final Set<Connection> clients;
+    private final Set<Connection> subscribers;
+    private final Map<Connection, ReplyQueue> replyQueues;
     private final Index index;
+    private final PlacementPolicy placement;
+    private final Rebalancer rebalancer;
+    private final boolean nio;
+    private final ExecutorService workers;
+    private final FailureDetector detector;
+    private final ReplicaSelector replicas;
+    private final Map<Connection, Map<String, List<Integer>>> loadAttempts;
+    private final int ecData;
+    private final int ecParity;
+    private final MetadataLog log;
+    private final Set<Integer> awaitingRejoin;
+    private final long rejoinGrace;
+    private long rejoinBy;
     private boolean open;
 
     public Controller(int cport, int R, int timeout, int rebalancePeriod) {
@@ -27,18 +42,37 @@ public class Controller {
         this.rebalancePeriod = rebalancePeriod;
         this.cport = cport;
         open = false;
-        index = new Index();
-        dStoreMap = new HashMap<>();
-        clients = new HashSet<>();
-    }
+        placement = PlacementPolicy.create(System.getProperty("controller.placement", "least-bytes"));
+        log = System.getProperty("controller.wal", "true").equals("true")
+                ? new MetadataLog(new File(System.getProperty("controller.meta", System.getProperty("user.dir") + "/dStorage/controller.meta")))
+                : null;
+        index = new Index(placement, log);
+        rebalancer = new Rebalancer(this, index, placement, R, timeout);
+        dStoreMap = new ConcurrentHashMap<>();
+        clients = ConcurrentHashMap.newKeySet();
+        subscribers = ConcurrentHashMap.newKeySet();
+        replyQueues = new ConcurrentHashMap<>();
+        nio = System.getProperty("controller.io", "thread").equals("nio");
+        workers = Workers.create();
+        replicas = new ReplicaSelector();
+        loadAttempts = new ConcurrentHashMap<>();
+        awaitingRejoin = ConcurrentHashMap.newKeySet();
+        rejoinGrace = Long.getLong("controller.rejoin.grace", 5000);
+        detector = new FailureDetector(Long.getLong("dfs.heartbeat", 500), Double.parseDouble(System.getProperty("controller.phi", "8")));
+
+        // -Dcontroller.ec=k+m lets clients store files as k data and m parity shards with STORE_EC.
+
+        var ec = System.getProperty("controller.ec", "0+0").split("\\+");
+        ecData = Integer.parseInt(ec[0]);
+        ecParity = Integer.parseInt(ec[1]);
+    }
+
+    // dStorage is kept across restarts: the Controller's metadata log lives in it, and DStores rejoin with their files.
 
     public static void main(String[] args) {
         var dir = new File(System.getProperty("user.dir") + "/dStorage");
-        if (dir.exists()) {
-            Controller.deleteDirectory(dir);
-        }
-        if (!dir.mkdir()) {
-            System.err.println("Failure clearing or creating /dStorage");
+        if (!dir.isDirectory() && !dir.mkdir()) {
+            System.err.println("Failure creating /dStorage");
             System.exit(1);
         }
         new Controller(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3])).start();
@@ -56,37 +90,43 @@ public class Controller {
     }
 
     private void acceptConnections() {
-        new Thread(() -> {
+        if (nio) {
+            workers.execute(new EventLoop(cport, this));
+            return;
+        }
+        workers.execute(() -> {
             open = true;
             try {
                 var ss = new ServerSocket(cport);
                 while (open) {
                     try {
-                        final var connection = ss.accept();
-                        new Thread(() -> {
+                        final var connection = new SocketConnection(ss.accept());
+                        workers.execute(() -> {
                             try {
-                                var in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+                                var in = connection.getReader();
                                 String msg = in.readLine();
                                 while (msg != null) {
                                     handleMessage(msg, connection);
+                                    if (connection.isFramed()) {
+                                        readFrames(connection);
+                                        break;
+                                    }
                                     try {
                                         msg = in.readLine();
                                     } catch (SocketTimeoutException e) {
                                         if (dStoreMap.containsKey(connection)) {
                                             msg = "";
-                                            index.removeTimedOutFiles(dStoreMap.get(connection));
                                         }
                                     }
                                 }
                                 //in.close();
                                 //connection.close();
-                                dStoreMap.remove(connection);
-                                clients.remove(connection);
+                                connectionClosed(connection);
                             } catch (Exception e) {
                                 System.err.println("Error receiving data from " + connection + ": " + e);
                                 e.printStackTrace();
                             }
-                        }).start();
+                        });
                     } catch (Exception e) {
                         System.err.println("Error accepting connection: " + e);
                     }
@@ -95,228 +135,404 @@ public class Controller {
             } catch (Exception e) {
                 System.err.println("Error creating ServerSocket in Controller: " + e);
             }
-        }).start();
+        });
     }
 
-    public Set<Integer> getRDStores() {
-        var res = new HashSet<Integer>();
-        var tmp = new ArrayList<>(dStoreMap.values().stream().toList());
-        Collections.shuffle(tmp);
-        for (int i = 0; i < R; i++) {
-            res.add(tmp.get(i));
+    // Bytes are fed to the decoder as they arrive rather than read a frame at a time, so a read timeout in the
+    // middle of a frame keeps what has arrived of it and the stream stays aligned.
+
+    private void readFrames(SocketConnection connection) throws IOException {
+        var in = connection.getSocket().getInputStream();
+        var frames = new FrameDecoder();
+        var buf = ByteBuffer.allocate(64 * 1024);
+        while (true) {
+            int n;
+            try {
+                n = in.read(buf.array());
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            if (n == -1) return;
+            frames.feed(buf.clear().limit(n));
+            while (frames.next()) handleFrame(frames, connection);
         }
-        return res;
     }
 
-    public void start() {
-        acceptConnections();
-//        new Thread(() -> {
-//            while (true) {
-//                try {
-//                    Thread.sleep(rebalancePeriod);
-//                    rebalance();
-//                } catch (InterruptedException e) {
-//                    System.err.println("Rebalance sleep interrupted.");
-//                }
-//            }
-//        }).start();
+    // A STORE or REMOVE whose acks have not all arrived within the timeout is abandoned, so its name is free again.
+    // Each operation keeps its own deadline: DStore links carry heartbeats and are never idle long enough for a
+    // read timeout to stand in for one.
+
+    void expireOperations() {
+        index.expireOperations(System.currentTimeMillis() - timeout);
     }
 
-    public void sendMessage(String msg, Socket dest) {
-        try {
-            var out = new PrintWriter(dest.getOutputStream());
-            out.println(msg);
-            out.flush();
-        } catch (IOException e) {
-            System.err.println("Error sending message: " + msg + " to dest " + dest);
-            e.printStackTrace();
+    // Losing a DStore re-replicates its files straight away rather than at the next rebalance period.
+
+    void connectionClosed(Connection connection) {
+        var dStore = dStoreMap.remove(connection);
+        if (dStore != null) {
+            detector.remove(dStore);
+            replicas.remove(dStore);
+            placement.removeDStore(dStore);
+            rebalancer.dStoreLost(dStore);
+            index.dStoreLost(dStore);
+            workers.execute(rebalancer::rebalance);
+        }
+        clients.remove(connection);
+        subscribers.remove(connection);
+        replyQueues.remove(connection);
+        loadAttempts.remove(connection);
+    }
+
+    // Recovered replicas on DStores that have not rejoined within the grace period are written off, and only then
+    // may the rebalancer repair them; rebalancing earlier would move files between the first DStores to return.
+
+    public boolean isRecovering() {
+        return !awaitingRejoin.isEmpty();
+    }
+
+    private void checkRejoins() {
+        if (awaitingRejoin.isEmpty() || System.currentTimeMillis() < rejoinBy) return;
+        for (var dStore : awaitingRejoin) {
+            System.out.println("DStore " + dStore + " did not rejoin, its replicas are lost");
+            index.dStoreLost(dStore);
+        }
+        awaitingRejoin.clear();
+        workers.execute(rebalancer::rebalance);
+    }
+
+    // JOIN <port> <n> (<file> <size>)*: replicas the index expects but the DStore lacks, or holds at the wrong
+    // size, are dropped and repaired. Files it holds that the index does not place there are taken back if they
+    // are still short of replicas, and otherwise removed from it.
+
+    private void reconcile(int dStore, String[] args, Connection sender) {
+        var reported = new HashMap<String, Long>();
+        for (int i = 0, n = Integer.parseInt(args[2]); i < n; i++) {
+            reported.put(args[3 + 2 * i], Long.parseLong(args[4 + 2 * i]));
+        }
+        var orphans = index.reconcile(dStore, reported, rebalancer::isScheduled, f -> rebalancer.isArriving(f, dStore));
+        if (!orphans.isEmpty()) sendMessage("REMOVE " + String.join(" ", orphans), sender);
+        System.out.println("DStore " + dStore + " reported " + reported.size() + " files, " + orphans.size() + " not in the index");
+    }
+
+    // A DStore whose heartbeats stop is dropped as soon as the detector suspects it, even if its socket is
+    // still open, instead of waiting for the connection to break.
+
+    private void detectFailures() {
+        var now = System.currentTimeMillis();
+        for (var e : dStoreMap.entrySet()) {
+            if (detector.suspect(e.getValue(), now)) {
+                System.out.println("DStore " + e.getValue() + " suspected failed, phi=" + String.format("%.1f", detector.phi(e.getValue(), now)));
+                e.getKey().close();
+                connectionClosed(e.getKey());
+            }
         }
     }
 
-    // Rebalance not used as DStore side not complete.
+    // Replicas each client has been sent to for its recent LOADs, so a RELOAD can skip them. Only the last
+    // MAX_LOAD_ATTEMPTS files per client are remembered.
+
+    private Map<String, List<Integer>> attemptsBy(Connection client) {
+        return loadAttempts.computeIfAbsent(client, c -> new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Integer>> eldest) {
+                return size() > MAX_LOAD_ATTEMPTS;
+            }
+        });
+    }
+
+    public Set<Integer> getRDStores(String filename, long size) {
+        return placement.choose(filename, size, R);
+    }
+
+    public List<Integer> getDStorePorts() {
+        return new ArrayList<>(dStoreMap.values());
+    }
+
+    public Connection connectionFor(int dStore) {
+        for (var e : dStoreMap.entrySet()) {
+            if (e.getValue() == dStore) return e.getKey();
+        }
+        return null;
+    }
 
-    private void rebalance() {
-        synchronized (index) {
+    public void start() {
+        if (log != null) {
             try {
-                System.out.println("Rebalance started.");
-                BufferedReader in;
-                String[] args;
-                var files = new HashSet<String>();
-                var oldIndex = new HashMap<Integer, List<String>>();
-                for (var e : dStoreMap.entrySet()) {
-                    var dStore = e.getKey();
-                    sendMessage("LIST", dStore);
-                    System.out.println("Sent LIST request to DStore: " + dStoreMap.get(dStore));
-                    try {
-                        in = new BufferedReader(new InputStreamReader(dStore.getInputStream()));
-                        var msg = in.readLine();
-                        //in.close();
-                        args = msg.split(" ");
-                        if (msg.startsWith("LIST")) {
-                            System.out.println("LIST received from DStore: " + dStoreMap.get(dStore));
-                            oldIndex.put(e.getValue(), new ArrayList<>(Arrays.asList(args).subList(1, args.length)));
-                            files.addAll(Arrays.asList(args).subList(1, args.length));
-                        }
-                    } catch (IOException e2) {
-                        System.err.println("Error performing rebalance: " + e2);
-                        e2.printStackTrace();
-                    }
-                }
-                var newIndexTmp = new HashMap<>(oldIndex.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> new ArrayList<>(e.getValue()))));
-                for (var file : files) {
-                    int count = R;
-                    for (var dStore : newIndexTmp.entrySet()) {
-                        if (dStore.getValue().contains(file)) {
-                            count--;
-                        }
-                    }
-                    for (int i = 0; i < count; i++) {
-                        for (var dStore : newIndexTmp.entrySet()) {
-                            if (!dStore.getValue().contains(file)) {
-                                dStore.getValue().add(file);
-                                break;
-                            }
-                        }
-                    }
+                var start = System.nanoTime();
+                for (var f : log.recover()) {
+                    index.addFile(f);
+                    awaitingRejoin.addAll(f.getDStores());
                 }
-                var newIndex = new ArrayList<>(newIndexTmp.entrySet().stream().toList());
-                newIndex.sort((o1, o2) -> Integer.compare(o2.getValue().size(), o1.getValue().size()));
+                log.start(index::getFiles);
+                rejoinBy = System.currentTimeMillis() + rejoinGrace;
+                System.out.println("Metadata recovered in " + (System.nanoTime() - start) / 1_000_000 + "ms, waiting for DStores: " + awaitingRejoin);
+            } catch (IOException e) {
+                System.err.println("Error recovering Controller metadata: " + e);
+                System.exit(1);
+            }
+        }
+        acceptConnections();
+        workers.execute(() -> {
+            while (true) {
                 try {
-                    while (newIndex.get(0).getValue().size() - newIndex.get(newIndex.size() - 1).getValue().size() > 1){
-                        for (var s : newIndex.get(0).getValue()) {
-                            if (!newIndex.get(newIndex.size() - 1).getValue().contains(s)) {
-                                newIndex.get(newIndex.size() - 1).getValue().add(s);
-                                newIndex.get(0).getValue().remove(s);
-                                break;
-                            }
-                        }
-                        newIndex.sort((o1, o2) -> Integer.compare(o2.getValue().size(), o1.getValue().size()));
-                    }
+                    Thread.sleep(100);
+                    detectFailures();
+                    expireOperations();
+                    checkRejoins();
+                } catch (InterruptedException e) {
+                    return;
                 } catch (Exception e) {
-                    System.err.println(e);
-                }
-                var removesList = new HashMap<Integer, Set<String>>();
-                var wantedList = new HashMap<Integer, Set<String>>();
-                for (var newI : newIndex) {
-                    var newSet = new HashSet<>(newI.getValue());
-                    var oldSet = new HashSet<>(oldIndex.get(newI.getKey()));
-                    var removes = new HashSet<>(oldSet);
-                    removes.removeAll(newSet);
-                    removesList.put(newI.getKey(), removes);
-                    var moves = new HashSet<>(newSet);
-                    moves.removeAll(oldSet);
-                    wantedList.put(newI.getKey(), moves);
-                }
-                var movesList = new HashMap<Integer, HashMap<String, Set<Integer>>>();
-                for (var source : oldIndex.entrySet()) {
-                    var tmp2 = new HashMap<String, Set<Integer>>();
-                    for (var file : source.getValue()) {
-                        var tmp = new HashSet<Integer>();
-                        for (var dstore : wantedList.entrySet()) {
-                            if (dstore.getValue().contains(file)) {
-                                tmp.add(dstore.getKey());
-                            }
-                        }
-                        tmp2.put(file, tmp);
-                    }
-                    movesList.put(source.getKey(), tmp2);
+                    System.err.println("Error checking DStore heartbeats: " + e);
                 }
-                for (var dstore : dStoreMap.entrySet()) {
-                    StringBuilder msg = new StringBuilder("REBALANCE");
-                    try {
-                        msg.append(" ").append(movesList.get(dstore.getValue()).size());
-                        for (var send : movesList.get(dstore.getValue()).entrySet()) {
-                            msg.append(" ").append(send.getKey()).append(" ").append(send.getValue().size());
-                            for (var t : send.getValue()) {
-                                msg.append(" ").append(t);
-                            }
-                        }
-                    } catch (NullPointerException ignored) {
-                    } catch (Exception e) {
-                        System.err.println(e);
-                    }
-                    try {
-                        msg.append(" ").append(removesList.get(dstore.getValue()).size());
-                        for (var remove : removesList.get(dstore.getValue())) {
-                            msg.append(" ").append(remove);
-                        }
-                    } catch (NullPointerException ignored) {
-                    } catch (Exception e) {
-                        System.err.println(e);
-                    }
-                    sendMessage(msg.toString(), dstore.getKey());
-                    System.out.println("Sent REBALANCE message to: " + dstore.getValue());
-                    try {
-                        in = new BufferedReader(new InputStreamReader(dstore.getKey().getInputStream()));
-                        var line = in.readLine();
-                        //in.close();
-                        if (line.equals("REBALANCE_COMPLETE")) {
-                            System.out.println("Rebalance operation completed at DStore: " + dstore.getValue());
-                        }
-                    } catch (SocketTimeoutException ste) {
-                        System.err.println("Rebalance operation not completed at DStore " + dstore.getValue() + " before timeout");
-                    } catch (IOException e2) {
-                        System.err.println("Error receiving rebalance complete: " + e2);
-                        e2.printStackTrace();
-                    }
+            }
+        });
+        workers.execute(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(rebalancePeriod);
+                    rebalancer.rebalance();
+                } catch (InterruptedException e) {
+                    System.err.println("Rebalance sleep interrupted.");
+                    return;
+                } catch (Exception e) {
+                    System.err.println("Error during rebalance: " + e);
+                    e.printStackTrace();
                 }
-            } catch (Exception e) {
-                System.err.println(e);
-                e.printStackTrace();
             }
+        });
+    }
+
+    // Pushed to caching clients whenever a file appears or starts being removed, so cached lists, replicas and
+    // contents never outlive the file they describe. Queued with the message's other replies, so no subscriber is
+    // written to on the thread handling the message.
+
+    private void invalidate(String filename, Map<Connection, List<String>> outbox) {
+        for (var subscriber : subscribers) {
+            post(outbox, subscriber, "INVALIDATE " + filename);
+        }
+    }
+
+    public void sendMessage(String msg, Connection dest) {
+        try {
+            dest.send(msg);
+        } catch (IOException e) {
+            System.err.println("Error sending message: " + msg + " to dest " + dest);
+            e.printStackTrace();
+        }
+    }
+
+    // Every line for one connection goes out in a single write, so a batch of acks or completions costs one flush.
+
+    public boolean sendMessages(List<String> msgs, Connection dest) {
+        try {
+            dest.send(msgs);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error sending " + msgs.size() + " messages to dest " + dest);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // "<verb> <n>" followed by exactly n entries of perFile fields, each size a non-negative long, checked before a
+    // batch touches the index so a bad request changes nothing.
+
+    private static boolean isBatch(String[] args, int perFile) {
+        try {
+            var n = Integer.parseInt(args[1]);
+            if (n < 0 || args.length != 2 + (long) n * perFile) return false;
+            for (int i = 3; perFile == 2 && i < args.length; i += 2) {
+                if (parseSize(args[i], Long.MAX_VALUE) < 0) return false;
+            }
+            return true;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    // The size argument of a store, or -1 if it is missing, not a number, negative or above max.
+
+    private static long parseSize(String[] args, int i, long max) {
+        return i < args.length ? parseSize(args[i], max) : -1;
+    }
+
+    private static long parseSize(String arg, long max) {
+        try {
+            var size = Long.parseLong(arg);
+            return size <= max ? size : -1;
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
-    private void handleMessage(String msg, Socket sender) {
+    private static void post(Map<Connection, List<String>> outbox, Connection dest, String msg) {
+        outbox.computeIfAbsent(dest, d -> new ArrayList<>()).add(msg);
+    }
+
+    void handleMessage(String msg, Connection sender) {
+
+        // An optional "#<id> " prefix tags a request; every reply to it, including a later
+        // STORE_COMPLETE or REMOVE_COMPLETE, carries the same tag so one link can multiplex operations.
+
+        var tag = "";
+        if (msg.startsWith("#") && msg.indexOf(' ') > 0) {
+            tag = msg.substring(0, msg.indexOf(' ') + 1);
+            msg = msg.substring(tag.length());
+        }
         var args = msg.split(" ");
+        var outbox = new LinkedHashMap<Connection, List<String>>();
+        index.takeLogged();
+
+        // DStore liveness and connecting.
+
+        if (msg.startsWith("HEARTBEAT")) {
+            var dStore = dStoreMap.get(sender);
+            if (dStore != null) {
+                detector.heartbeat(dStore);
+                if (args.length > 2) replicas.report(dStore, Integer.parseInt(args[1]), Double.parseDouble(args[2]));
+            }
+        } else if (msg.startsWith("JOIN")) {
 
-        // DStore connecting.
+            // A DStore rejoining on a new connection replaces its old one without being counted as lost.
 
-        if (msg.startsWith("JOIN")) {
-            dStoreMap.put(sender, Integer.parseInt(msg.split(" ")[1]));
+            var port = Integer.parseInt(args[1]);
+            dStoreMap.entrySet().removeIf(e -> e.getValue() == port && e.getKey() != sender);
+            dStoreMap.put(sender, port);
+            detector.joined(port);
+            placement.addDStore(port);
+            if (args.length > 2) reconcile(port, args, sender);
+            if (awaitingRejoin.remove(port)) index.rejoined(port);
             try {
-                sender.setSoTimeout(timeout);
+                sender.setTimeout(timeout);
             } catch (SocketException e) {
                 System.err.println("Error adding timeout to socket: " + e);
                 e.printStackTrace();
             }
-            System.out.println("DStore " + Integer.parseInt(msg.split(" ")[1]) + " connected");
-            //rebalance();
+            System.out.println("DStore " + port + " connected");
+            workers.execute(rebalancer::rebalance);
+        } else if (msg.startsWith("REBALANCE_COMPLETE")) {
+            var dStore = dStoreMap.get(sender);
+            if (dStore != null) {
+                rebalancer.completed(dStore, args);
+            }
+        } else if (msg.startsWith("REPLICA_LOST")) {
+
+            // REPLICA_LOST <file>: the DStore found its copy corrupt and deleted it.
+
+            var dStore = dStoreMap.get(sender);
+            if (dStore != null) {
+                for (int i = 1; i < args.length; i++) {
+                    index.replicaLost(args[i], dStore);
+                }
+                workers.execute(rebalancer::rebalance);
+            }
+        } else if (msg.equals("BINARY")) {
+
+            // Answered at once and in text; the peer sends nothing more until it has read this.
+
+            sendMessage("BINARY_OK", sender);
+            sender.setFramed();
+        } else if (msg.equals("SUBSCRIBE")) {
+            subscribers.add(sender);
+            post(outbox, sender, tag + "SUBSCRIBED");
+        } else if (msg.equals("REBALANCE_STATUS")) {
+            post(outbox, sender, tag + "REBALANCE_STATUS " + rebalancer.getStatus());
         }
 
         // STORE commands.
 
         else if (msg.startsWith("STORE_ACK")) {
-            synchronized (index) {
-                var file = index.getFile(args[1]);
-                try {
-                    file.ackReceived();
-                    System.out.println("STORE_ACK received from " + dStoreMap.get(sender) + " for: " + file.getFilename() + ", " + (R - file.getAcksReceived()) + " remaining");
-                    if (file.getAcksReceived() >= R) {
-                        file.setState(State.STORE_COMPLETE);
-                        sendMessage("STORE_COMPLETE", file.getStoredBy());
-                        System.out.println("Store complete for " + file.getFilename());
+
+            // A DStore acks every store it finished since its last ack in one line: STORE_ACK <file>...
+
+            var dStore = dStoreMap.get(sender);
+            for (int i = 1; i < args.length; i++) {
+                storeAcked(dStore, args[i], outbox);
+            }
+        } else if (msg.startsWith("STORE_EC")) {
+
+            // One shard per DStore: the client encodes and sends shard i to the i-th port.
+
+            // Shards are rebuilt in memory, so an erasure-coded file's size must fit an int.
+
+            clients.add(sender);
+            var size = parseSize(args, 2, Integer.MAX_VALUE);
+            if (ecData == 0) {
+                post(outbox, sender, tag + "ERROR_EC_DISABLED");
+            } else if (size < 0) {
+                post(outbox, sender, tag + "ERROR_MALFORMED_SIZE");
+            } else if (dStoreMap.size() < Math.max(R, ecData + ecParity)) {
+                post(outbox, sender, tag + "ERROR_NOT_ENOUGH_DSTORES");
+            } else if (index.containsFile(args[1])) {
+                post(outbox, sender, tag + "ERROR_FILE_ALREADY_EXISTS");
+            } else {
+                var file = new DistributedFile(args[1], size, ecData, ecData + ecParity, sender, tag);
+                var stores = placement.choose(args[1], file.getStoredSize(), file.getWidth());
+                file.getDStores().addAll(stores);
+                if (!index.addFile(file)) {
+                    post(outbox, sender, tag + "ERROR_FILE_ALREADY_EXISTS");
+                } else {
+                    var reply = new StringBuilder("STORE_TO_EC ").append(ecData).append(" ").append(ecParity);
+                    for (var n : stores) {
+                        reply.append(" ").append(n);
+                    }
+                    System.out.println("Storing " + args[1] + " as shards to DStores: " + reply);
+                    post(outbox, sender, tag + reply.toString());
+                }
+            }
+        } else if (msg.startsWith("STORE_BATCH")) {
+
+            // STORE_BATCH <n> (<file> <size>)* -> STORE_TO_BATCH <n> (<file> <k> <port>...)*, k = 0 if the file
+            // exists. Each file then completes on its own with "STORE_COMPLETE <file>".
+
+            clients.add(sender);
+            if (!isBatch(args, 2)) {
+                post(outbox, sender, tag + "ERROR_MALFORMED_BATCH");
+            } else if (dStoreMap.size() < R) {
+                post(outbox, sender, tag + "ERROR_NOT_ENOUGH_DSTORES");
+            } else {
+                var n = Integer.parseInt(args[1]);
+                var reply = new StringBuilder("STORE_TO_BATCH ").append(n);
+                for (int i = 0; i < n; i++) {
+                    var name = args[2 + 2 * i];
+                    var size = Long.parseLong(args[3 + 2 * i]);
+                    reply.append(" ").append(name);
+                    var stores = index.containsFile(name) ? Set.<Integer>of() : getRDStores(name, size);
+                    var file = new DistributedFile(name, size, stores, R, sender, tag);
+                    file.setBatched();
+                    if (stores.isEmpty() || !index.addFile(file)) {
+                        reply.append(" 0");
+                        continue;
+                    }
+                    reply.append(" ").append(stores.size());
+                    for (var port : stores) {
+                        reply.append(" ").append(port);
                     }
-                } catch (NullPointerException e) {
-                    System.out.println("STORE_ACK received from " + dStoreMap.get(sender) + " for deleted file: " + args[1]);
                 }
+                System.out.println("Storing batch of " + n + " files");
+                post(outbox, sender, tag + reply);
             }
         } else if (msg.startsWith("STORE")) {
-            synchronized (index) {
-                clients.add(sender);
-                if (dStoreMap.size() < R) {
-                    sendMessage("ERROR_NOT_ENOUGH_DSTORES", sender);
-                } else if (index.containsFile(args[1])) {
-                    sendMessage("ERROR_FILE_ALREADY_EXISTS", sender);
+            clients.add(sender);
+            var size = parseSize(args, 2, Long.MAX_VALUE);
+            if (size < 0) {
+                post(outbox, sender, tag + "ERROR_MALFORMED_SIZE");
+            } else if (dStoreMap.size() < R) {
+                post(outbox, sender, tag + "ERROR_NOT_ENOUGH_DSTORES");
+            } else if (index.containsFile(args[1])) {
+                post(outbox, sender, tag + "ERROR_FILE_ALREADY_EXISTS");
+            } else {
+                var stores = getRDStores(args[1], size);
+                if (!index.addFile(new DistributedFile(args[1], size, stores, R, sender, tag))) {
+                    post(outbox, sender, tag + "ERROR_FILE_ALREADY_EXISTS");
                 } else {
-                    var stores = getRDStores();
-                    index.addFile(new DistributedFile(args[1], Integer.parseInt(args[2]), State.STORE_IN_PROGRESS, stores, sender));
                     var reply = new StringBuilder("STORE_TO");
                     for (var n : stores) {
                         reply.append(" ").append(n);
                     }
                     System.out.println("Storing " + args[1] + " to DStores: " + reply);
-                    sendMessage(reply.toString(), sender);
+                    post(outbox, sender, tag + reply.toString());
                 }
             }
         }
@@ -324,220 +540,304 @@ public class Controller {
         // LOAD commands.
 
         else if (msg.startsWith("RELOAD")) {
-            synchronized (index) {
-                var file = index.getFile(args[1]);
-                file.reloadAttempted();
-                if (file.getReloadAttempts() < file.getDStores().size()) {
-                    if (dStoreMap.size() < R) {
-                        sendMessage("ERROR_NOT_ENOUGH_DSTORES", sender);
-                    } else if (!index.containsFile(args[1]) || file.getState().equals(State.STORE_IN_PROGRESS) || file.getState().equals(State.REMOVE_IN_PROGRESS)) {
-                        sendMessage("ERROR_FILE_DOES_NOT_EXIST", sender);
-                    } else {
-                        System.out.println("Re-loading " + file.getFilename() + " from DStore: " + file.getDStores().toArray()[file.getReloadAttempts()]);
-                        sendMessage("LOAD_FROM " + file.getDStores().toArray()[file.getReloadAttempts()] + " " + file.getSize(), sender);
-                    }
+            var file = index.getFile(args[1]);
+            if (dStoreMap.size() < R) {
+                post(outbox, sender, tag + "ERROR_NOT_ENOUGH_DSTORES");
+            } else if (file == null || file.getState() != State.STORE_COMPLETE) {
+                post(outbox, sender, tag + "ERROR_FILE_DOES_NOT_EXIST");
+            } else if (file.isErasureCoded()) {
+                post(outbox, sender, tag + "ERROR_LOAD");
+            } else {
+
+                // The DStore this client was last sent to failed it; every DStore it has tried is skipped.
+
+                var tried = attemptsBy(sender).computeIfAbsent(file.getFilename(), f -> new ArrayList<>());
+                if (!tried.isEmpty()) replicas.failed(tried.get(tried.size() - 1));
+                var dStore = replicas.choose(file.getDStores(), tried);
+                if (dStore != null) {
+                    tried.add(dStore);
+                    System.out.println("Re-loading " + file.getFilename() + " from DStore: " + dStore);
+                    post(outbox, sender, tag + "LOAD_FROM " + dStore + " " + file.getSize());
                 } else {
+                    attemptsBy(sender).remove(file.getFilename());
                     System.out.println("Couldn't load: " + file.getFilename());
-                    sendMessage("ERROR_LOAD", sender);
+                    post(outbox, sender, tag + "ERROR_LOAD");
                 }
             }
+        } else if (msg.startsWith("LOAD_STRIPED")) {
+
+            // Every replica, so the client can fetch CHUNK_SIZE ranges from all of them in parallel.
+
+            var file = index.getFile(args[1]);
+            if (dStoreMap.size() < R) {
+                post(outbox, sender, tag + "ERROR_NOT_ENOUGH_DSTORES");
+            } else if (file == null || file.getState() != State.STORE_COMPLETE) {
+                post(outbox, sender, tag + "ERROR_FILE_DOES_NOT_EXIST");
+            } else if (file.getDStores().isEmpty() || file.isErasureCoded()) {
+                post(outbox, sender, tag + "ERROR_LOAD");
+            } else {
+                var reply = new StringBuilder("STRIPES ").append(file.getSize()).append(" ").append(CHUNK_SIZE);
+                for (var dStore : file.getDStores()) {
+                    reply.append(" ").append(dStore);
+                }
+                System.out.println("Striped load of " + file.getFilename() + " from DStores: " + file.getDStores());
+                post(outbox, sender, tag + reply);
+            }
+        } else if (msg.startsWith("LOAD_EC")) {
+
+            // Every shard holder; the client reads any k of them, each shard naming its own index.
+
+            var file = index.getFile(args[1]);
+            if (dStoreMap.size() < R) {
+                post(outbox, sender, tag + "ERROR_NOT_ENOUGH_DSTORES");
+            } else if (file == null || file.getState() != State.STORE_COMPLETE) {
+                post(outbox, sender, tag + "ERROR_FILE_DOES_NOT_EXIST");
+            } else if (!file.isErasureCoded() || file.getDStores().size() < file.getDataShards()) {
+                post(outbox, sender, tag + "ERROR_LOAD");
+            } else {
+                var reply = new StringBuilder("LOAD_EC_FROM ").append(file.getSize()).append(" ").append(file.getDataShards())
+                        .append(" ").append(file.getWidth() - file.getDataShards());
+                for (var dStore : file.getDStores()) {
+                    reply.append(" ").append(dStore);
+                }
+                System.out.println("Loading shards of " + file.getFilename() + " from DStores: " + file.getDStores());
+                post(outbox, sender, tag + reply);
+            }
+        } else if (msg.startsWith("LOAD_BATCH")) {
+
+            // LOAD_BATCH <n> <file>* -> LOAD_FROM_BATCH <n> (<file> <port> <size>)*, port 0 if the file cannot
+            // be loaded. A failed file is retried with RELOAD as usual.
+
+            if (!isBatch(args, 1)) {
+                post(outbox, sender, tag + "ERROR_MALFORMED_BATCH");
+            } else if (dStoreMap.size() < R) {
+                post(outbox, sender, tag + "ERROR_NOT_ENOUGH_DSTORES");
+            } else {
+                var n = Integer.parseInt(args[1]);
+                var reply = new StringBuilder("LOAD_FROM_BATCH ").append(n);
+                for (int i = 0; i < n; i++) {
+                    var file = index.getFile(args[2 + i]);
+                    var dStore = file == null || file.getState() != State.STORE_COMPLETE || file.isErasureCoded() ? null : replicas.choose(file.getDStores(), List.of());
+                    reply.append(" ").append(args[2 + i]);
+                    if (dStore == null) {
+                        reply.append(" 0 0");
+                        continue;
+                    }
+                    var tried = new ArrayList<Integer>();
+                    tried.add(dStore);
+                    attemptsBy(sender).put(file.getFilename(), tried);
+                    reply.append(" ").append(dStore).append(" ").append(file.getSize());
+                }
+                post(outbox, sender, tag + reply);
+            }
         } else if (msg.startsWith("LOAD")) {
-            synchronized (index) {
-                var file = index.getFile(args[1]);
-                file.resetReloads();
-                if (dStoreMap.size() < R) {
-                    sendMessage("ERROR_NOT_ENOUGH_DSTORES", sender);
-                } else if (!index.containsFile(args[1]) || file.getState().equals(State.STORE_IN_PROGRESS) || file.getState().equals(State.REMOVE_IN_PROGRESS)) {
-                    sendMessage("ERROR_FILE_DOES_NOT_EXIST", sender);
+            var file = index.getFile(args[1]);
+            if (dStoreMap.size() < R) {
+                post(outbox, sender, tag + "ERROR_NOT_ENOUGH_DSTORES");
+            } else if (file == null || file.getState() != State.STORE_COMPLETE) {
+                post(outbox, sender, tag + "ERROR_FILE_DOES_NOT_EXIST");
+            } else if (file.isErasureCoded()) {
+                post(outbox, sender, tag + "ERROR_LOAD");
+            } else {
+                var dStore = replicas.choose(file.getDStores(), List.of());
+                if (dStore == null) {
+                    System.out.println("Couldn't load: " + file.getFilename());
+                    post(outbox, sender, tag + "ERROR_LOAD");
                 } else {
-                    System.out.println("Loading " + file.getFilename() + " from DStore: " + file.getDStores().toArray()[file.getReloadAttempts()]);
-                    sendMessage("LOAD_FROM " + file.getDStores().toArray()[file.getReloadAttempts()] + " " + file.getSize(), sender);
+                    var tried = new ArrayList<Integer>();
+                    tried.add(dStore);
+                    attemptsBy(sender).put(file.getFilename(), tried);
+                    System.out.println("Loading " + file.getFilename() + " from DStore: " + dStore);
+                    post(outbox, sender, tag + "LOAD_FROM " + dStore + " " + file.getSize());
                 }
             }
         }
 
         // Remove command.
 
-        else if (msg.startsWith("REMOVE_ACK")) {
-            synchronized (index) {
-                var file = index.getFile(args[1]);
-                try {
-                    file.ackReceived();
-                    System.out.println("REMOVE_ACK received from " + dStoreMap.get(sender) + " for: " + file.getFilename() + ", " + (R - file.getAcksReceived()) + " remaining");
-                    if (file.getAcksReceived() >= R) {
-                        file.setState(State.REMOVE_COMPLETE);
-                        sendMessage("REMOVE_COMPLETE", file.getRemovedBy());
-                        index.removeFile(file);
-                        System.out.println("Remove complete for " + file.getFilename());
+        else if (msg.startsWith("REMOVE_ACK") || (msg.startsWith("ERROR_FILE_DOES_NOT_EXIST") && dStoreMap.containsKey(sender))) {
+
+            // A DStore that no longer holds the file has nothing left to remove, so its error counts as an ack.
+            // Either may name several files.
+
+            var dStore = dStoreMap.get(sender);
+            for (int i = 1; i < args.length; i++) {
+                removeAcked(dStore, args[i], outbox);
+            }
+        } else if (msg.startsWith("REMOVE_BATCH")) {
+
+            // REMOVE_BATCH <n> <file>*: each DStore gets one REMOVE naming all of its files. Each file replies
+            // "REMOVE_COMPLETE <file>" or "ERROR_FILE_DOES_NOT_EXIST <file>".
+
+            if (!isBatch(args, 1)) {
+                post(outbox, sender, tag + "ERROR_MALFORMED_BATCH");
+            } else if (dStoreMap.size() < R) {
+                post(outbox, sender, tag + "ERROR_NOT_ENOUGH_DSTORES");
+            } else {
+                var requests = new LinkedHashMap<Connection, StringBuilder>();
+                for (int i = 0, n = Integer.parseInt(args[1]); i < n; i++) {
+                    var file = index.getFile(args[2 + i]);
+                    if (file == null || !index.transition(file, State.STORE_COMPLETE, State.REMOVE_IN_PROGRESS)) {
+                        post(outbox, sender, tag + "ERROR_FILE_DOES_NOT_EXIST " + args[2 + i]);
+                        continue;
+                    }
+                    file.setRemovedBy(sender, tag);
+                    file.setBatched();
+                    invalidate(file.getFilename(), outbox);
+                    for (var e : dStoreMap.entrySet()) {
+                        if (file.getDStores().contains(e.getValue())) {
+                            requests.computeIfAbsent(e.getKey(), c -> new StringBuilder("REMOVE")).append(" ").append(file.getFilename());
+                        }
                     }
-                } catch (NullPointerException e) {
-                    System.out.println("REMOVE_ACK received from " + dStoreMap.get(sender) + " for deleted file: " + args[1]);
                 }
+                requests.forEach((dStore, request) -> post(outbox, dStore, request.toString()));
+                System.out.println("Removing batch of " + args[1] + " files");
             }
         } else if (msg.startsWith("REMOVE")) {
-            synchronized (index) {
-                var file = index.getFile(args[1]);
-                if (dStoreMap.size() < R) {
-                    sendMessage("ERROR_NOT_ENOUGH_DSTORES", sender);
-                } else if (!index.containsFile(args[1]) || file.getState().equals(State.STORE_IN_PROGRESS) || file.getState().equals(State.REMOVE_IN_PROGRESS)) {
-                    sendMessage("ERROR_FILE_DOES_NOT_EXIST", sender);
-                } else {
-                    file.setState(State.REMOVE_IN_PROGRESS);
-                    file.resetAcks();
-                    file.setRemovedBy(sender);
-                    for (Integer s : file.getDStores()) {
-                        for (Map.Entry<Socket, Integer> e : dStoreMap.entrySet()) {
-                            if (e.getValue().equals(s)) {
-                                sendMessage("REMOVE " + file.getFilename(), e.getKey());
-                            }
-                        }
+            var file = index.getFile(args[1]);
+            if (dStoreMap.size() < R) {
+                post(outbox, sender, tag + "ERROR_NOT_ENOUGH_DSTORES");
+            } else if (file == null || !index.transition(file, State.STORE_COMPLETE, State.REMOVE_IN_PROGRESS)) {
+                post(outbox, sender, tag + "ERROR_FILE_DOES_NOT_EXIST");
+            } else {
+                file.setRemovedBy(sender, tag);
+                invalidate(file.getFilename(), outbox);
+                for (var e : dStoreMap.entrySet()) {
+                    if (file.getDStores().contains(e.getValue())) {
+                        post(outbox, e.getKey(), "REMOVE " + file.getFilename());
                     }
-                    System.out.println("Removing " + args[1] + " from DStores: " + file.getDStores().toString());
                 }
+                System.out.println("Removing " + args[1] + " from DStores: " + file.getDStores().toString());
             }
         }
 
-        // LIST command.
+        // LIST commands.
 
-        else if (msg.startsWith("LIST")) {
+        else if (msg.startsWith("LIST_PAGE")) {
+            if (!ListPage.isRequest(args)) {
+                post(outbox, sender, tag + "ERROR_MALFORMED_LIST_PAGE");
+            } else if (dStoreMap.size() < R) {
+                post(outbox, sender, tag + "ERROR_NOT_ENOUGH_DSTORES");
+            } else {
+                post(outbox, sender, tag + ListPage.reply(index.getAvailableFileSet(), args));
+            }
+        } else if (msg.startsWith("LIST")) {
             if (dStoreMap.size() < R) {
-                sendMessage("ERROR_NOT_ENOUGH_DSTORES", sender);
+                post(outbox, sender, tag + "ERROR_NOT_ENOUGH_DSTORES");
             } else {
                 System.out.println("Listing files in the index.");
-                synchronized (index) {
-                    sendMessage("LIST" + index.getAvailableFiles(), sender);
-                }
+                post(outbox, sender, tag + "LIST" + index.getAvailableFiles());
             }
         }
-    }
-}
-
-class Index {
 
-    private final Set<DistributedFile> files;
-
-    public Index() {
-        files = new LinkedHashSet<>();
+        reply(outbox, sender);
     }
 
-    public boolean containsFile(String filename) {
-        return getFile(filename) != null;
-    }
+    // Frames from a connection that agreed on binary framing. Heartbeats and acks are decoded in place; a LINE
+    // frame holds any other message as text.
 
-    public DistributedFile getFile(String filename) {
-        for (var f : files) {
-            if (f.getFilename().equals(filename)) return f;
+    void handleFrame(FrameDecoder frame, Connection sender) {
+        switch (frame.opcode()) {
+            case Frames.HEARTBEAT -> {
+                var dStore = dStoreMap.get(sender);
+                var transfers = frame.readInt();
+                var latency = frame.readInt();
+                if (dStore != null) {
+                    detector.heartbeat(dStore);
+                    replicas.report(dStore, transfers, latency);
+                }
+            }
+            case Frames.STORE_ACK, Frames.REMOVE_ACK, Frames.FILE_MISSING -> {
+                index.takeLogged();
+                var dStore = dStoreMap.get(sender);
+                var outbox = new LinkedHashMap<Connection, List<String>>();
+                while (frame.hasRemaining()) {
+                    if (frame.opcode() == Frames.STORE_ACK) storeAcked(dStore, frame.readString(), outbox);
+                    else removeAcked(dStore, frame.readString(), outbox);
+                }
+                reply(outbox, sender);
+            }
+            case Frames.LINE -> handleMessage(frame.readLine(), sender);
+            default -> System.err.println("Unknown frame opcode " + frame.opcode() + " from " + sender);
         }
-        return null;
     }
 
-    public String getAvailableFiles() {
-        StringBuilder res = new StringBuilder();
-        for (DistributedFile f : files) {
-            if (!f.getState().equals(State.STORE_IN_PROGRESS) && !f.getState().equals(State.REMOVE_IN_PROGRESS)) {
-                res.append(" ").append(f.getFilename());
+    private void storeAcked(Integer dStore, String filename, Map<Connection, List<String>> outbox) {
+        var file = index.getFile(filename);
+        if (file == null) {
+            System.out.println("STORE_ACK received from " + dStore + " for deleted file: " + filename);
+        } else if (dStore == null || !file.storeAcked(dStore)) {
+            System.out.println("Ignored duplicate or unexpected STORE_ACK from " + dStore + " for: " + filename);
+        } else {
+            System.out.println("STORE_ACK received from " + dStore + " for: " + file.getFilename() + ", " + (file.getWidth() - file.getStoreAcks()) + " remaining");
+            if (file.getStoreAcks() >= file.getWidth() && index.transition(file, State.STORE_IN_PROGRESS, State.STORE_COMPLETE)) {
+                post(outbox, file.getStoredBy(), file.getStoreTag() + "STORE_COMPLETE" + (file.isBatched() ? " " + file.getFilename() : ""));
+                invalidate(file.getFilename(), outbox);
+                System.out.println("Store complete for " + file.getFilename());
             }
         }
-        return res.toString();
     }
 
-    public synchronized void removeTimedOutFiles(int dStorePort) {
-        for (DistributedFile f : files) {
-            if (f.getDStores().contains(dStorePort) && (f.getState().equals(State.STORE_IN_PROGRESS) || f.getState().equals(State.REMOVE_IN_PROGRESS))) {
-                files.remove(f);
-                System.out.println("Removed file " + f.getFilename() + " for: " + dStorePort);
+    private void removeAcked(Integer dStore, String filename, Map<Connection, List<String>> outbox) {
+        var file = index.getFile(filename);
+        if (file == null) {
+            System.out.println("REMOVE_ACK received from " + dStore + " for deleted file: " + filename);
+        } else if (dStore == null || !file.removeAcked(dStore)) {
+            System.out.println("Ignored duplicate or unexpected REMOVE_ACK from " + dStore + " for: " + filename);
+        } else {
+            System.out.println("REMOVE_ACK received from " + dStore + " for: " + file.getFilename() + ", " + (file.getDStores().size() - file.getRemoveAcks()) + " remaining");
+            if (file.getRemoveAcks() >= file.getDStores().size() && index.transition(file, State.REMOVE_IN_PROGRESS, State.REMOVE_COMPLETE)) {
+                post(outbox, file.getRemovedBy(), file.getRemoveTag() + "REMOVE_COMPLETE" + (file.isBatched() ? " " + file.getFilename() : ""));
+                index.removeFile(file);
+                System.out.println("Remove complete for " + file.getFilename());
             }
         }
-        //files.removeIf(f -> f.getState().equals(State.STORE_IN_PROGRESS) && f.getDStores().contains(dStorePort));
     }
 
-    public void addFile(DistributedFile f) {
-        files.add(f);
-    }
+    // Replies are written once the index has been updated. Only a message that logged a record waits for it to be
+    // durable, and its replies are then handed to workers, so a slow client never holds up the log's flusher.
+    // Otherwise only the sender is answered inline; messages to anyone else also go through the workers.
 
-    public void removeFile(DistributedFile f) {
-        files.remove(f);
+    private void reply(Map<Connection, List<String>> outbox, Connection sender) {
+        var seq = index.takeLogged();
+        if (outbox.isEmpty()) return;
+        if (seq == 0) outbox.forEach((dest, replies) -> queueReplies(dest, replies, dest == sender));
+        else index.afterLogged(seq, () -> outbox.forEach((dest, replies) -> queueReplies(dest, replies, false)));
     }
 
-    public void removeFile(String f) {
-        files.remove(getFile(f));
-    }
-}
-
-class DistributedFile {
-
-    private final String filename;
-    private final int size;
-    private final Set<Integer> dStores;
-    private final Socket storedBy;
-    private Socket removedBy;
-    private State state;
-    private int acksReceived;
-    private int reloadAttempts;
-
-    public DistributedFile(String filename, int size, State state, Set<Integer> dStores, Socket storedBy) {
-        this.filename = filename;
-        this.size = size;
-        this.state = state;
-        this.dStores = dStores;
-        this.storedBy = storedBy;
-        acksReceived = 0;
-        reloadAttempts = 0;
-    }
+    // Replies to one connection leave in the order they were queued. The first thread to queue one sends them, on
+    // its own thread if inline and otherwise on a worker; later ones only add to the queue.
 
-    public void resetReloads() {
-        reloadAttempts = 0;
-    }
-
-    public void resetAcks() {
-        acksReceived = 0;
-    }
-
-    public Socket getRemovedBy() {
-        return removedBy;
-    }
-
-    public void setRemovedBy(Socket s) {
-        removedBy = s;
-    }
-
-    public int getSize() {
-        return size;
-    }
-
-    public Set<Integer> getDStores() {
-        return dStores;
-    }
-
-    public State getState() {
-        return state;
-    }
-
-    public void setState(State state) {
-        this.state = state;
-    }
-
-    public Socket getStoredBy() {
-        return storedBy;
-    }
-
-    public int getAcksReceived() {
-        return acksReceived;
-    }
-
-    public int getReloadAttempts() {
-        return reloadAttempts;
-    }
-
-    public void reloadAttempted() {
-        reloadAttempts++;
+    private void queueReplies(Connection dest, List<String> replies, boolean inline) {
+        var queue = replyQueues.computeIfAbsent(dest, d -> new ReplyQueue());
+        synchronized (queue) {
+            queue.pending.addAll(replies);
+            if (queue.sending) return;
+            queue.sending = true;
+        }
+        if (inline) drain(dest, queue);
+        else workers.execute(() -> drain(dest, queue));
     }
 
-    public void ackReceived() {
-        acksReceived++;
+    private void drain(Connection dest, ReplyQueue queue) {
+        while (true) {
+            List<String> replies;
+            synchronized (queue) {
+                if (queue.pending.isEmpty()) {
+                    queue.sending = false;
+                    return;
+                }
+                replies = new ArrayList<>(queue.pending);
+                queue.pending.clear();
+            }
+            if (!sendMessages(replies, dest) && subscribers.remove(dest)) {
+                System.out.println("Dropped subscriber " + dest + " after a failed write");
+            }
+        }
     }
 
-    public String getFilename() {
-        return filename;
+    private static class ReplyQueue {
+        private final List<String> pending = new ArrayList<>();
+        private boolean sending;
     }
-}
\ No newline at end of file
+}
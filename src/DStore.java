@@ -1,18 +1,68 @@
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.Objects;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32C;
+
+// NONE leaves flushing to the OS, COMPLETE fdatasyncs before STORE_ACK, PERIODIC fdatasyncs every interval while writing.
+
+enum Durability {
+    NONE, COMPLETE, PERIODIC
+}
 
 public class DStore {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private final int port;
     private final int cport;
     private final int timeout;
     private final File fileFolder;
-    private Socket controller;
-    private Socket client;
-    private ServerSocket ss;
+    private final File tmpFolder;
+    private final Durability durability;
+    private final long syncInterval;
+    private final BufferPool buffers;
+    private final PeerPool peers;
+    private final ScheduledExecutorService stallTimer;
+    private final Semaphore rebalanceSlots;
+    private final Semaphore rebalanceReceives;
+    private final Throttle throttle;
+    private final ExecutorService workers;
+    private final Semaphore transfers;
+    private final AtomicInteger foreground;
+    private final FileCache cache;
+    private final Map<String, ReedSolomon> codecs;
+    private final Manifest manifest;
+    private final boolean binary;
+    private final Queue<String> acks;
+    private final AtomicBoolean acking;
+    private double loadLatency;
+    private volatile SocketConnection controller;
+    private ServerSocketChannel ss;
     private boolean stable = true;
 
     public DStore(int port, int cport, int timeout, String fileFolder) {
@@ -20,72 +70,241 @@ public class DStore {
         this.cport = cport;
         this.timeout = timeout;
         this.fileFolder = new File(System.getProperty("user.dir") + "/dStorage/" + fileFolder);
-        var res = true;
-        if (this.fileFolder.exists()) {
-            for (var f : Objects.requireNonNull(this.fileFolder.listFiles())) {
+        tmpFolder = new File(this.fileFolder.getPath() + ".tmp");
+        durability = Durability.valueOf(System.getProperty("dstore.fsync", "none").toUpperCase());
+        syncInterval = Long.getLong("dstore.fsync.interval", 1000);
+        buffers = new BufferPool(BUFFER_SIZE);
+        peers = new PeerPool(timeout);
+        stallTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "stall-watch");
+            t.setDaemon(true);
+            return t;
+        });
+        rebalanceSlots = new Semaphore(Integer.getInteger("dstore.rebalance.parallel", 4));
+        rebalanceReceives = new Semaphore(Integer.getInteger("dstore.rebalance.parallel", 4), true);
+        workers = Workers.create();
+        transfers = new Semaphore(Integer.getInteger("dstore.transfers", 64), true);
+        foreground = new AtomicInteger();
+        cache = new FileCache(Long.getLong("dstore.cache.bytes", 0));
+        codecs = new ConcurrentHashMap<>();
+        acks = new ConcurrentLinkedQueue<>();
+        binary = System.getProperty("dstore.protocol", "text").equals("binary");
+        acking = new AtomicBoolean();
+        throttle = new Throttle(Long.getLong("dstore.rebalance.rate", 0), Long.getLong("dstore.rebalance.busy.rate", 32L << 20), () -> foreground.get() > 0);
+
+        // Stored files survive a restart; only uploads that never finished are cleared.
+
+        var res = this.fileFolder.isDirectory() || this.fileFolder.mkdir();
+        if (tmpFolder.exists()) {
+            for (var f : Objects.requireNonNull(tmpFolder.listFiles())) {
                 res = res && f.delete();
             }
         } else {
-            res = this.fileFolder.mkdir();
+            res = res && tmpFolder.mkdir();
         }
         if (!res) {
             throw new RuntimeException("Error: dStorage Creation failed. ID: " + this.port);
         }
+        try {
+            manifest = new Manifest(new File(this.fileFolder.getPath() + ".manifest"), this.fileFolder, durability != Durability.NONE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error: manifest of " + this.fileFolder + " unreadable", e);
+        }
     }
 
     public static void main(String[] args) {
         new DStore(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), args[3]).start();
     }
 
+    // A lost Controller link is re-established and the DStore joins again, so a restarted Controller gets its
+    // DStores back with their files in place.
+
     private void listenToServer() {
         stable = true;
-        new Thread(() -> {
+        workers.execute(() -> {
             while (stable) {
                 try {
-                    var in = new BufferedReader(new InputStreamReader(controller.getInputStream()));
-                    String msg;
-                    while ((msg = in.readLine()) != null) handleServerMessage(msg);
-                    //controller.close();
+                    if (controller.isFramed()) {
+                        var in = new DataInputStream(new BufferedInputStream(controller.getSocket().getInputStream()));
+                        var frames = new FrameDecoder();
+                        while (frames.read(in)) handleServerMessage(frames.readLine());
+                    } else {
+                        var in = controller.getReader();
+                        String msg;
+                        while ((msg = in.readLine()) != null) handleServerMessage(msg);
+                    }
+                    System.err.println("Controller closed the connection to DStore " + port);
                 } catch (Exception e) {
-                    stable = false;
                     System.err.println("Error listening to server: " + e);
                 }
+                controller.close();
+                while (stable) {
+                    try {
+                        Thread.sleep(1000);
+                        join();
+                        break;
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        System.err.println("Error reconnecting to Controller: " + e);
+                    }
+                }
+            }
+        });
+    }
+
+    // JOIN carries the whole manifest, so the Controller learns what survived a restart without a LIST.
+
+    private void join() throws IOException {
+        var link = new SocketConnection(new Socket("localhost", cport));
+        if (binary) negotiate(link);
+        controller = link;
+        sendMessage("JOIN " + port + manifest.describe(), controller);
+        System.out.println("DStore " + port + " registered with server, holding " + manifest.size() + " files");
+    }
+
+    // With -Ddstore.protocol=binary the link asks for binary framing before JOIN. A Controller that does not answer
+    // within the timeout is spoken to in text.
+
+    private void negotiate(SocketConnection link) throws IOException {
+        link.send("BINARY");
+        link.setTimeout(timeout);
+        try {
+            if ("BINARY_OK".equals(link.getReader().readLine())) {
+                link.setFramed();
+                return;
+            }
+        } catch (SocketTimeoutException e) {
+            System.err.println("Controller did not agree to binary framing, using text");
+        } finally {
+            link.setTimeout(0);
+        }
+    }
+
+    // Lets the Controller's failure detector tell a slow DStore from a dead one; the interval must match its dfs.heartbeat.
+    // Each heartbeat also carries the running client transfers and load latency used for replica selection.
+
+    private void sendHeartbeats() {
+        var interval = Long.getLong("dfs.heartbeat", 500);
+        workers.execute(() -> {
+            while (stable) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                var link = controller;
+                if (link.getSocket().isClosed()) continue;
+                if (link.isFramed()) sendFrame(Frames.heartbeat(foreground.get(), (int) Math.round(getLoadLatency())), link);
+                else sendMessage("HEARTBEAT " + foreground.get() + " " + Math.round(getLoadLatency()), link);
             }
-        }).start();
+        });
     }
 
     private void listenForClient() {
-        new Thread(() -> {
+        workers.execute(() -> {
             try {
-                ss = new ServerSocket(port);
+                ss = ServerSocketChannel.open();
+                ss.bind(new InetSocketAddress(port));
                 while (true) {
-                    client = ss.accept();
-                    var in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                    String msg;
-                    while ((msg = in.readLine()) != null) {
-                        handleClientMessage(msg);
-                    }
-                    //client.close();
-                }
-            } catch (SocketException e) {
-                if (e.getMessage().contains("Socket closed")) {
-                    System.out.println("Client terminated connection with DStore: " + port);
-                } else {
-                    System.err.println("Error creating ServerSocket in DStore: " + e);
+                    final var client = ss.accept().socket();
+                    workers.execute(() -> serveClient(client));
                 }
             } catch (Exception e) {
                 System.err.println("Error creating ServerSocket in DStore: " + e);
             }
-        }).start();
+        });
+    }
+
+    // Each client connection keeps its own socket; only the transfers themselves are capped. Client requests
+    // count as foreground while they run, which holds rebalance traffic to the busy rate. Incoming rebalance
+    // copies take permits from their own pool, so repairs never occupy client slots. It is separate from the
+    // pool outgoing sends use, so two DStores copying to each other cannot each wait on the other's permits.
+
+    private void serveClient(Socket socket) {
+        var client = new SocketConnection(socket);
+        try {
+            var in = client.getReader();
+            String msg;
+            while ((msg = in.readLine()) != null) {
+                var permits = msg.startsWith("REBALANCE_STORE") ? rebalanceReceives : transfers;
+                permits.acquire();
+                if (permits == transfers) foreground.incrementAndGet();
+                try {
+                    handleClientMessage(msg, client);
+                } finally {
+                    if (permits == transfers) foreground.decrementAndGet();
+                    permits.release();
+                }
+            }
+            //client.close();
+        } catch (SocketException e) {
+            if (e.getMessage().contains("Socket closed")) {
+                System.out.println("Client terminated connection with DStore: " + port);
+            } else {
+                System.err.println("Error receiving from client at DStore " + port + ": " + e);
+            }
+        } catch (Exception e) {
+            System.err.println("Error receiving from client at DStore " + port + ": " + e);
+        }
     }
 
-    public void sendMessage(String msg, Socket dest) {
+    public void sendMessage(String msg, Connection dest) {
         try {
-            var out = new PrintWriter(dest.getOutputStream());
-            out.println(msg);
-            out.flush();
+            dest.send(msg);
         } catch (IOException e) {
-            System.err.println("Error sending message: " + msg + " to dest " + dest.getLocalPort());
+            System.err.println("Error sending message: " + msg + " to dest " + dest);
+            e.printStackTrace();
+        }
+    }
+
+    private void sendFrame(ByteBuffer frame, Connection dest) {
+        try {
+            dest.sendFrame(frame);
+        } catch (IOException e) {
+            System.err.println("Error sending frame to dest " + dest);
+            e.printStackTrace();
+        }
+    }
+
+    public void sendMessages(List<String> msgs, Connection dest) {
+        try {
+            dest.send(msgs);
+        } catch (IOException e) {
+            System.err.println("Error sending " + msgs.size() + " messages to dest " + dest);
+            e.printStackTrace();
+        }
+    }
+
+    // Whichever thread finds no ack being sent sends every store finished so far as one STORE_ACK line, and keeps
+    // going until none are left, so a burst of small stores costs the Controller one message rather than one each.
+
+    private void storeAcked(String filename) {
+        acks.add(filename);
+        while (!acks.isEmpty() && acking.compareAndSet(false, true)) {
+            try {
+                var names = new ArrayList<String>();
+                String f;
+                while ((f = acks.poll()) != null) {
+                    names.add(f);
+                }
+                reportFiles("STORE_ACK", Frames.STORE_ACK, names);
+            } finally {
+                acking.set(false);
+            }
+        }
+    }
+
+    // "<verb> <file>..." to the Controller, or its frame once the link is framed.
+
+    private void reportFiles(String verb, byte opcode, List<String> names) {
+        if (names.isEmpty()) return;
+        var link = controller;
+        try {
+            if (link.isFramed()) link.sendFrame(Frames.files(opcode, names));
+            else link.send(verb + " " + String.join(" ", names));
+        } catch (IOException e) {
+            System.err.println("Error sending " + verb + " for " + names.size() + " files to dest " + link);
             e.printStackTrace();
         }
     }
@@ -93,28 +312,38 @@ public class DStore {
     private void handleServerMessage(String msg) {
         var args = msg.split(" ");
 
-        // REMOVE command.
+        // REMOVE command. It may name several files; they are answered with at most one REMOVE_ACK and one
+        // ERROR_FILE_DOES_NOT_EXIST between them.
 
         if (msg.startsWith("REMOVE")) {
-            var file = new File(fileFolder + "/" + args[1]);
-            System.out.println("Request to remove received: " + file.getName());
-            if (file.exists()) {
-                if (file.delete()) {
-                    sendMessage("REMOVE_ACK " + args[1], controller);
-                    System.out.println("Removed file: " + args[1]);
+            var removed = new ArrayList<String>();
+            var missing = new ArrayList<String>();
+            for (int i = 1; i < args.length; i++) {
+                var file = new File(fileFolder + "/" + args[i]);
+                System.out.println("Request to remove received: " + file.getName());
+                cache.invalidate(args[i]);
+                if (file.exists()) {
+                    if (dropFromManifest(args[i]) && file.delete()) {
+                        removed.add(args[i]);
+                        System.out.println("Removed file: " + args[i]);
+                    } else {
+                        System.err.println("Error deleting file " + args[i] + " at DStore: " + port);
+                    }
                 } else {
-                    System.err.println("Error deleting file " + args[1] + " at DStore: " + port);
+                    missing.add(args[i]);
                 }
-            } else {
-                sendMessage("ERROR_FILE_DOES_NOT_EXIST " + args[1], controller);
             }
+            reportFiles("REMOVE_ACK", Frames.REMOVE_ACK, removed);
+            reportFiles("ERROR_FILE_DOES_NOT_EXIST", Frames.FILE_MISSING, missing);
         }
 
-        // LIST command.
+        // LIST commands.
 
-        else if (msg.equals("LIST")) {
+        else if (msg.startsWith("LIST_PAGE")) {
+            sendMessage(ListPage.isRequest(args) ? ListPage.reply(manifest.names(), args) : "ERROR_MALFORMED_LIST_PAGE", controller);
+        } else if (msg.equals("LIST")) {
             StringBuilder reply = new StringBuilder("LIST");
-            for (var t : Objects.requireNonNull(fileFolder.list())) {
+            for (var t : manifest.names()) {
                 reply.append(" ").append(t);
             }
             sendMessage(reply.toString(), controller);
@@ -124,84 +353,567 @@ public class DStore {
 
         else if (msg.startsWith("REBALANCE")) {
             System.out.println(msg);
-            var numFilesSend = Integer.parseInt(args[1]);
-            var numDStores = 0;
-            for (int i = 0; i < numFilesSend; i++) {
-                numDStores = Integer.parseInt(args[3 + numDStores]);
-                for (int j = 0; j < Integer.parseInt(args[3]); j++) {
-                    //sendMessage("REBALANCE_STORE " + args[2], );
+            var sends = new LinkedHashMap<String, List<Integer>>();
+            var i = 2;
+            for (int f = 0, numFilesSend = Integer.parseInt(args[1]); f < numFilesSend; f++) {
+                var targets = new ArrayList<Integer>();
+                var filename = args[i++];
+                for (int d = 0, numDStores = Integer.parseInt(args[i++]); d < numDStores; d++) {
+                    targets.add(Integer.parseInt(args[i++]));
+                }
+                sends.put(filename, targets);
+            }
+            var removes = Arrays.asList(args).subList(i + 1, i + 1 + Integer.parseInt(args[i]));
+            i += 1 + removes.size();
+            var rebuilds = new ArrayList<String[]>();
+            for (int f = 0, numRebuilds = i < args.length ? Integer.parseInt(args[i++]) : 0; f < numRebuilds; f++) {
+                var end = i + 6 + Integer.parseInt(args[i + 5]);
+                rebuilds.add(Arrays.copyOfRange(args, i, end));
+                i = end;
+            }
+            workers.execute(() -> rebalance(sends, removes, rebuilds));
+        }
+    }
+
+    // Sends and shard rebuilds run in parallel, at most rebalanceSlots at once and within the throttle's byte rate.
+    // A file is only removed locally once every copy of it has been sent; failed transfers are reported back to the
+    // Controller, a failed rebuild as the file and this DStore's own port.
+
+    private void rebalance(Map<String, List<Integer>> sends, List<String> removes, List<String[]> rebuilds) {
+        var failed = ConcurrentHashMap.<String>newKeySet();
+        var failedFiles = ConcurrentHashMap.<String>newKeySet();
+        var done = new CountDownLatch(sends.values().stream().mapToInt(List::size).sum() + rebuilds.size());
+        for (var rebuild : rebuilds) {
+            workers.execute(() -> {
+                try {
+                    rebalanceSlots.acquire();
+                    try {
+                        rebuildShard(rebuild);
+                    } finally {
+                        rebalanceSlots.release();
+                    }
+                } catch (Exception e) {
+                    System.err.println("Error rebuilding shard of " + rebuild[0] + ": " + e);
+                    failed.add(rebuild[0] + " " + port);
+                } finally {
+                    done.countDown();
                 }
+            });
+        }
+        for (var send : sends.entrySet()) {
+            for (var target : send.getValue()) {
+                workers.execute(() -> {
+                    try {
+                        rebalanceSlots.acquire();
+                        try {
+                            sendToPeer(send.getKey(), target);
+                        } finally {
+                            rebalanceSlots.release();
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Error sending " + send.getKey() + " to DStore " + target + ": " + e);
+                        failed.add(send.getKey() + " " + target);
+                        failedFiles.add(send.getKey());
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            System.err.println("Rebalance interrupted at DStore: " + port);
+            return;
+        }
+        for (var name : removes) {
+            if (failedFiles.contains(name)) continue;
+            var file = new File(fileFolder, name);
+            cache.invalidate(name);
+            if (file.exists() && !(dropFromManifest(name) && file.delete())) {
+                System.err.println("Error deleting file " + name + " at DStore: " + port);
+            }
+        }
+        var reply = new StringBuilder("REBALANCE_COMPLETE");
+        if (!failed.isEmpty()) {
+            reply.append(" ").append(failed.size());
+            for (var f : failed) {
+                reply.append(" ").append(f);
             }
         }
+        sendMessage(reply.toString(), controller);
+    }
+
+    private void sendToPeer(String filename, int target) throws IOException {
+        if (!intact(filename)) throw new IOException("Local copy of " + filename + " failed its checksum");
+        var link = peers.take(target);
+        link.setTimeout(timeout);
+        try (var in = FileChannel.open(new File(fileFolder, filename).toPath(), StandardOpenOption.READ)) {
+            link.send("REBALANCE_STORE " + filename + " " + in.size());
+            if (!"ACK".equals(link.getReader().readLine())) {
+                throw new IOException("No ACK for REBALANCE_STORE from DStore " + target);
+            }
+            sendFile(in, 0, in.size(), link.getSocket().getChannel(), throttle);
+            if (!"ACK".equals(link.getReader().readLine())) {
+                throw new IOException("DStore " + target + " did not confirm " + filename);
+            }
+        } catch (IOException e) {
+            link.close();
+            throw e;
+        }
+        peers.give(target, link);
     }
 
-    private void handleClientMessage(String msg) {
+    // <file> <size> <k> <m> <ordinal> <n> <port>...: reads each holder's shard index, picks the ordinal-th index
+    // none of them has, then decodes it from k whole shards. Reads share the rebalance throttle.
+
+    private void rebuildShard(String[] args) throws IOException {
+        var filename = args[0];
+        var dataShards = Integer.parseInt(args[2]);
+        var codec = codecs.computeIfAbsent(args[2] + "+" + args[3], c -> new ReedSolomon(dataShards, Integer.parseInt(args[3])));
+        var width = dataShards + codec.getParityShards();
+        var length = (Integer.parseInt(args[1]) + dataShards - 1) / dataShards;
+        var holders = new TreeMap<Integer, Integer>();
+        for (int i = 6; i < args.length; i++) {
+            var holder = Integer.parseInt(args[i]);
+            try {
+                holders.putIfAbsent(fetchShard(holder, filename, 1)[0] & 0xff, holder);
+            } catch (IOException e) {
+                System.err.println("Shard of " + filename + " unavailable at DStore " + holder + ": " + e);
+            }
+        }
+        var missing = new ArrayList<Integer>();
+        for (int i = 0; i < width; i++) {
+            if (!holders.containsKey(i)) missing.add(i);
+        }
+        var ordinal = Integer.parseInt(args[4]);
+        if (ordinal >= missing.size()) throw new IOException("No missing shard " + ordinal + " of " + filename + ", missing: " + missing);
+        var shards = new byte[width][];
+        var present = new boolean[width];
+        var count = 0;
+        for (var e : holders.entrySet()) {
+            if (count == dataShards) break;
+            try {
+                throttle.acquire(length + 1);
+                shards[e.getKey()] = fetchShard(e.getValue(), filename, length + 1);
+                present[e.getKey()] = true;
+                count++;
+            } catch (IOException ex) {
+                System.err.println("Shard of " + filename + " unavailable at DStore " + e.getValue() + ": " + ex);
+            }
+        }
+        if (count < dataShards) throw new IOException("Only " + count + " of " + dataShards + " shards of " + filename + " readable");
+        for (int i = 0; i < width; i++) {
+            if (!present[i]) shards[i] = new byte[length + 1];
+        }
+        codec.decode(shards, present, 1, length);
+        var shard = missing.get(ordinal);
+        shards[shard][0] = (byte) (int) shard;
+        var tmp = Files.createTempFile(tmpFolder.toPath(), filename, ".part");
+        Files.write(tmp, shards[shard]);
+        Files.move(tmp, new File(fileFolder, filename).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        var checksum = new CRC32C();
+        checksum.update(shards[shard]);
+        manifest.put(filename, length + 1, checksum.getValue());
+        cache.invalidate(filename);
+        System.out.println("Rebuilt shard " + shard + " of " + filename);
+    }
+
+    // The first length bytes of a peer's copy of filename, over a pooled link.
+
+    private byte[] fetchShard(int target, String filename, int length) throws IOException {
+        var link = peers.take(target);
+        link.setTimeout(timeout);
+        var data = new byte[length];
+        try {
+            link.send("LOAD_DATA " + filename + " 0 " + length);
+            new DataInputStream(link.getSocket().getInputStream()).readFully(data);
+        } catch (IOException e) {
+            link.close();
+            throw e;
+        }
+        peers.give(target, link);
+        return data;
+    }
+
+    private void handleClientMessage(String msg, SocketConnection client) {
         var args = msg.split(" ");
 
         // STORE commands.
 
-        if (msg.startsWith("STORE")) {
-            var file = new File(fileFolder + "/" + args[1]);
+        // The client's ACK waits until the rest of the chain is ready, and a failed upload closes the client link:
+        // whatever it has not sent yet would otherwise be read as commands.
+
+        if (msg.startsWith("STORE_CHAIN")) {
+            System.out.println("Request to chain store received: " + args[1]);
+
+            // A hop that stops acking or reading fails the chain back upstream after the timeout, releasing
+            // this hop's permit, rather than holding every DStore before it.
+
+            SocketConnection next = null;
+            var watch = new StallWatch(stallTimer, timeout, client);
+            try {
+                if (args.length > 3) {
+                    var nextPort = Integer.parseInt(args[3]);
+                    next = peers.take(nextPort);
+                    watch.add(next);
+                    var forward = new StringBuilder("STORE_CHAIN ").append(args[1]).append(" ").append(args[2]);
+                    for (int i = 4; i < args.length; i++) {
+                        forward.append(" ").append(args[i]);
+                    }
+                    next.send(forward.toString());
+                    if (!"ACK".equals(next.getReader().readLine())) {
+                        throw new IOException("No ACK from next DStore in chain: " + nextPort);
+                    }
+                }
+                client.send("ACK");
+                receiveFile(args[1], Long.parseLong(args[2]), client.getSocket().getChannel(), next == null ? null : next.getSocket().getChannel(), null, watch);
+                watch.close();
+                if (next != null) peers.give(Integer.parseInt(args[3]), next);
+                System.out.println("Written file: " + args[1]);
+                storeAcked(args[1]);
+            } catch (IOException e) {
+                System.err.println("Error in chain store of " + args[1] + " at DStore " + port + ": " + e);
+                watch.close();
+                if (next != null) next.close();
+                client.close();
+            }
+        } else if (msg.startsWith("REBALANCE_STORE")) {
+
+            // Copies from another DStore during rebalance: no STORE_ACK, the sender reports to the Controller.
+            // Incoming copies share the rebalance throttle with outgoing ones.
+
+            sendMessage("ACK", client);
+            try {
+                receiveFile(args[1], Long.parseLong(args[2]), client.getSocket().getChannel(), null, throttle, null);
+                sendMessage("ACK", client);
+                System.out.println("Rebalance copy received: " + args[1]);
+            } catch (IOException e) {
+                System.err.println("Error receiving rebalance copy of " + args[1] + ": " + e);
+                client.close();
+            }
+        } else if (msg.startsWith("STORE")) {
             System.out.println("Request to store received: " + args[1]);
             sendMessage("ACK", client);
             System.out.println("ACK sent for: " + args[1]);
             try {
                 System.out.println("Beginning write for: " + args[1]);
-                var in = client.getInputStream();
-                var buf = new byte[Integer.parseInt(args[2])];
-                int bufLen;
-                var out = new FileOutputStream(file);
-                while ((bufLen = in.read(buf)) != -1) {
-                    out.write(buf, 0, bufLen);
-                }
-                //in.close();
-                //out.close();
-                //client.close();
+                receiveFile(args[1], Long.parseLong(args[2]), client.getSocket().getChannel(), null, null, null);
                 System.out.println("Written file: " + args[1]);
+                storeAcked(args[1]);
             } catch (IOException e) {
                 System.err.println("Error accepting file contents from client.");
                 e.printStackTrace();
+                client.close();
             }
-            sendMessage("STORE_ACK " + args[1], controller);
         }
 
         // LOAD commands.
 
+        // "LOAD_DATA file offset length" sends just that range, so a striped read can take different
+        // chunks of a file from different replicas over one connection each.
+
         else if (msg.startsWith("LOAD_DATA")) {
             var file = new File(fileFolder + "/" + args[1]);
-            System.out.println("Request to load received: " + file.getName());
+            var offset = args.length > 3 ? Long.parseLong(args[2]) : 0;
+            var length = args.length > 3 ? Long.parseLong(args[3]) : Long.MAX_VALUE;
+            System.out.println("Request to load received: " + file.getName() + (args.length > 3 ? " " + offset + "+" + length : ""));
             try {
-                if (file.exists()) {
+                if (offset < 0 || length < 0) {
+                    client.getSocket().close();
+                    return;
+                }
+                var start = System.nanoTime();
+                var cached = cache.get(args[1]);
+                if (cached != null && offset <= cached.remaining()) {
+                    var end = length > cached.limit() - offset ? cached.limit() : offset + length;
+                    cached.position((int) offset).limit((int) end);
+                    var size = cached.remaining();
+                    var out = client.getSocket().getChannel();
+                    while (cached.hasRemaining()) {
+                        out.write(cached);
+                    }
+                    loadServed(System.nanoTime() - start, size);
+                    System.out.println("Loaded file from cache: " + file.getName());
+                } else if (file.exists()) {
+                    if (!intact(args[1])) {
+                        client.getSocket().close();
+                        return;
+                    }
                     System.out.println("Beginning load for: " + file.getName());
-                    var in = new FileInputStream(file);
-                    var out = client.getOutputStream();
-                    var buf = new byte[(int) file.length()];
-                    int bufLen;
-                    while ((bufLen = in.read(buf)) != -1) {
-                        out.write(buf, 0, bufLen);
+                    var epoch = cache.epoch();
+                    boolean whole;
+                    try (var in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        if (offset > in.size()) {
+                            client.getSocket().close();
+                            return;
+                        }
+                        var count = Math.min(length, in.size() - offset);
+                        sendFile(in, offset, count, client.getSocket().getChannel(), null);
+                        loadServed(System.nanoTime() - start, count);
+                        whole = offset == 0 && count == in.size();
                     }
-                    //in.close();
-                    //out.close();
+
+                    // Only a load of the whole file offers it, so the chunks of a striped read do not each
+                    // read the file in again.
+
+                    if (whole) cache.offer(args[1], file, epoch);
                     System.out.println("Loaded file: " + file.getName());
                 } else {
-                    client.close();
+                    client.getSocket().close();
                 }
             } catch (Exception e) {
                 System.err.println("Error loading data from Dstore " + port + ":" + e);
                 e.printStackTrace();
             }
+        } else if (msg.equals("CACHE_STATS")) {
+            sendMessage("CACHE_STATS " + cache.stats(), client);
+        }
+    }
+
+    // EWMA of LOAD_DATA service time in microseconds per BUFFER_SIZE sent, so large and small files compare.
+
+    private synchronized void loadServed(long nanos, long size) {
+        var sample = nanos / 1000.0 / Math.max(1, (double) size / BUFFER_SIZE);
+        loadLatency = loadLatency == 0 ? sample : 0.8 * loadLatency + 0.2 * sample;
+    }
+
+    private synchronized double getLoadLatency() {
+        return loadLatency;
+    }
+
+    // Streams exactly filesize bytes through a pooled buffer into a temp file, then renames it into place,
+    // so a partial upload is never visible and the connection stays usable for the next request. Every
+    // receive gets its own temp file, so concurrent receives of one name cannot interleave their bytes.
+    // In a replication chain each chunk is forwarded to the next DStore before it is written locally.
+
+    private void receiveFile(String filename, long filesize, ReadableByteChannel in, WritableByteChannel forward, Throttle throttle, StallWatch watch) throws IOException {
+        var tmp = Files.createTempFile(tmpFolder.toPath(), filename, ".part");
+        var buf = buffers.take();
+        var checksum = new CRC32C();
+        try (var out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            var remaining = filesize;
+            var lastSync = System.currentTimeMillis();
+            while (remaining > 0) {
+                buf.clear();
+                if (remaining < buf.capacity()) buf.limit((int) remaining);
+                if (in.read(buf) == -1) {
+                    throw new EOFException("Client closed after " + (filesize - remaining) + " of " + filesize + " bytes");
+                }
+                buf.flip();
+                if (throttle != null) throttle.acquire(buf.remaining());
+                if (watch != null) watch.progress();
+                checksum.update(buf.duplicate());
+                if (forward != null) {
+                    var chunk = buf.duplicate();
+                    while (chunk.hasRemaining()) {
+                        forward.write(chunk);
+                    }
+                    if (watch != null) watch.progress();
+                }
+                while (buf.hasRemaining()) {
+                    remaining -= out.write(buf);
+                }
+                if (durability == Durability.PERIODIC && System.currentTimeMillis() - lastSync >= syncInterval) {
+                    out.force(false);
+                    lastSync = System.currentTimeMillis();
+                }
+            }
+            if (durability == Durability.COMPLETE) out.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        } finally {
+            buffers.give(buf);
+        }
+        Files.move(tmp, new File(fileFolder, filename).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        manifest.put(filename, filesize, checksum.getValue());
+        cache.invalidate(filename);
+    }
+
+    // A copy that no longer matches its manifest checksum is deleted rather than served or copied, and the
+    // Controller is told so it can repair the file from another replica.
+
+    private boolean intact(String filename) {
+        var file = new File(fileFolder, filename);
+        try {
+            if (manifest.verify(filename, file)) return true;
+        } catch (IOException e) {
+            System.err.println("Error verifying " + filename + " at DStore " + port + ": " + e);
+            return false;
+        }
+        System.err.println("Checksum mismatch for " + filename + " at DStore " + port + ", dropping it");
+        cache.invalidate(filename);
+        if (dropFromManifest(filename) && !file.delete()) System.err.println("Error deleting file " + filename + " at DStore: " + port);
+        sendMessage("REPLICA_LOST " + filename, controller);
+        return false;
+    }
+
+    // The entry goes before the file does, so the manifest never lists a file that is not there.
+
+    private boolean dropFromManifest(String filename) {
+        try {
+            manifest.drop(filename);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error updating manifest for " + filename + " at DStore " + port + ": " + e);
+            return false;
+        }
+    }
+
+    // transferTo lets the kernel copy file pages straight to the socket, so file bytes never reach the heap.
+
+    private static void sendFile(FileChannel in, long offset, long count, WritableByteChannel out, Throttle throttle) throws IOException {
+        var size = offset + count;
+        var position = offset;
+        while (position < size) {
+            var chunk = throttle == null ? size - position : Math.min(BUFFER_SIZE, size - position);
+            if (throttle != null) throttle.acquire(chunk);
+            position += in.transferTo(position, chunk, out);
         }
     }
 
     public void start() {
         try {
-            controller = new Socket("localhost", cport);
-            sendMessage("JOIN " + port, controller);
-            System.out.println("DStore " + port + " registered with server");
+            join();
             listenToServer();
             listenForClient();
+            sendHeartbeats();
         } catch (Exception e) {
             System.out.println(getClass() + " error: " + e);
         }
     }
-}
\ No newline at end of file
+}
+
+class BufferPool {
+
+    private final int size;
+    private final Queue<ByteBuffer> free;
+
+    public BufferPool(int size) {
+        this.size = size;
+        free = new ConcurrentLinkedQueue<>();
+    }
+
+    public ByteBuffer take() {
+        var buf = free.poll();
+        return buf != null ? buf : ByteBuffer.allocateDirect(size);
+    }
+
+    public void give(ByteBuffer buf) {
+        free.offer(buf);
+    }
+}
+
+// Idle links to other DStores, kept open between chain transfers. A link is checked out for a whole transfer.
+// New links connect and read within the timeout, so a hung peer fails the transfer instead of blocking it.
+
+class PeerPool {
+
+    private final int timeout;
+    private final Map<Integer, Queue<SocketConnection>> idle;
+
+    public PeerPool(int timeout) {
+        this.timeout = timeout;
+        idle = new ConcurrentHashMap<>();
+    }
+
+    public SocketConnection take(int port) throws IOException {
+        var links = idle.get(port);
+        SocketConnection link;
+        while (links != null && (link = links.poll()) != null) {
+            if (!link.getSocket().isClosed()) return link;
+        }
+        var socket = SocketChannel.open().socket();
+        try {
+            socket.connect(new InetSocketAddress("localhost", port), timeout);
+            socket.setSoTimeout(timeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new SocketConnection(socket);
+    }
+
+    public void give(int port, SocketConnection link) {
+        idle.computeIfAbsent(port, p -> new ConcurrentLinkedQueue<>()).offer(link);
+    }
+}
+
+// Token bucket shared by all rebalance transfers on a DStore. While foreground client transfers are running the
+// busy rate applies, or the base rate if that is lower, so rebalance cannot starve LOADs even when it is otherwise
+// unthrottled. A rate of 0 means no limit.
+
+class Throttle {
+
+    private final long bytesPerSecond;
+    private final long busyBytesPerSecond;
+    private final BooleanSupplier busy;
+    private double available;
+    private long last;
+
+    public Throttle(long bytesPerSecond, long busyBytesPerSecond, BooleanSupplier busy) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.busyBytesPerSecond = busyBytesPerSecond;
+        this.busy = busy;
+        last = System.nanoTime();
+    }
+
+    public void acquire(long bytes) {
+        var rate = bytesPerSecond;
+        if (busyBytesPerSecond > 0 && busy.getAsBoolean()) rate = rate > 0 ? Math.min(rate, busyBytesPerSecond) : busyBytesPerSecond;
+        long wait;
+        synchronized (this) {
+            var now = System.nanoTime();
+            if (rate <= 0) {
+                last = now;
+                return;
+            }
+            available = Math.min(rate, available + (now - last) * rate / 1e9);
+            last = now;
+            available -= bytes;
+            wait = available < 0 ? (long) (-available * 1e9 / rate) : 0;
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
+// Closes a transfer's links once no bytes have moved for the timeout. Reads and writes on socket channels ignore
+// SO_TIMEOUT, so this is what unblocks a transfer stuck on a peer that stopped reading or sending.
+
+class StallWatch implements AutoCloseable {
+
+    private final List<Connection> links;
+    private final ScheduledFuture<?> check;
+    private volatile long last;
+
+    public StallWatch(ScheduledExecutorService timer, int timeout, Connection link) {
+        links = new CopyOnWriteArrayList<>(List.of(link));
+        last = System.nanoTime();
+        check = timer.scheduleAtFixedRate(() -> {
+            if (System.nanoTime() - last > timeout * 1_000_000L) {
+                System.err.println("Transfer stalled for " + timeout + "ms, closing its links");
+                links.forEach(Connection::close);
+            }
+        }, timeout, Math.max(1, timeout / 2), TimeUnit.MILLISECONDS);
+    }
+
+    public void add(Connection link) {
+        links.add(link);
+    }
+
+    public void progress() {
+        last = System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+        check.cancel(false);
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicReference;
+
+class DistributedFile {
+
+    private final String filename;
+    private final long size;
+    private final int dataShards;
+    private final int width;
+    private final Set<Integer> dStores;
+    private final Connection storedBy;
+    private final String storeTag;
+    private volatile Connection removedBy;
+    private volatile String removeTag;
+    private final AtomicReference<State> state;
+    private final Set<Integer> storeAcks;
+    private final Set<Integer> removeAcks;
+    private final long createdAt;
+    private volatile long startedAt;
+    private volatile boolean batched;
+
+    public DistributedFile(String filename, long size, Set<Integer> dStores, int r, Connection storedBy, String storeTag) {
+        this(filename, size, 0, r, storedBy, storeTag);
+        this.dStores.addAll(dStores);
+    }
+
+    // An erasure-coded file has width = k + m DStores, each holding one shard of ceil(size / k) bytes after a
+    // one-byte shard index.
+
+    public DistributedFile(String filename, long size, int dataShards, int width, Connection storedBy, String storeTag) {
+        this.filename = filename;
+        this.size = size;
+        this.dataShards = dataShards;
+        this.width = width;
+        dStores = new CopyOnWriteArraySet<>();
+        this.storedBy = storedBy;
+        this.storeTag = storeTag;
+        removeTag = "";
+        createdAt = System.currentTimeMillis();
+        startedAt = createdAt;
+        state = new AtomicReference<>(State.STORE_IN_PROGRESS);
+        storeAcks = ConcurrentHashMap.newKeySet();
+        removeAcks = ConcurrentHashMap.newKeySet();
+    }
+
+    public boolean transition(State from, State to) {
+        if (!from.canMoveTo(to)) {
+            throw new IllegalStateException("Illegal transition for " + filename + ": " + from + " -> " + to);
+        }
+        if (!state.compareAndSet(from, to)) return false;
+        if (to == State.REMOVE_IN_PROGRESS) startedAt = System.currentTimeMillis();
+        return true;
+    }
+
+    // Acks only count once per replica, so a repeated ack from one DStore cannot complete the operation.
+
+    public boolean storeAcked(int dStore) {
+        return dStores.contains(dStore) && storeAcks.add(dStore);
+    }
+
+    public boolean removeAcked(int dStore) {
+        return dStores.contains(dStore) && removeAcks.add(dStore);
+    }
+
+    public boolean addReplica(int dStore) {
+        return dStores.add(dStore);
+    }
+
+    public boolean removeReplica(int dStore) {
+        return dStores.remove(dStore);
+    }
+
+    public int getStoreAcks() {
+        return storeAcks.size();
+    }
+
+    public int getRemoveAcks() {
+        return removeAcks.size();
+    }
+
+    public Connection getRemovedBy() {
+        return removedBy;
+    }
+
+    public String getRemoveTag() {
+        return removeTag;
+    }
+
+    public void setRemovedBy(Connection s, String tag) {
+        removeTag = tag;
+        removedBy = s;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    // When the STORE or REMOVE now in progress began.
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public boolean isInProgress() {
+        var s = state.get();
+        return s == State.STORE_IN_PROGRESS || s == State.REMOVE_IN_PROGRESS;
+    }
+
+    // Stored or removed by a batch request, so its completion names the file.
+
+    public boolean isBatched() {
+        return batched;
+    }
+
+    public void setBatched() {
+        batched = true;
+    }
+
+    public boolean isErasureCoded() {
+        return dataShards > 0;
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    // Copies or shards the file should have.
+
+    public int getWidth() {
+        return width;
+    }
+
+    // Bytes each holder keeps on disk.
+
+    public long getStoredSize() {
+        return isErasureCoded() ? 1 + (size + dataShards - 1) / dataShards : size;
+    }
+
+    public Set<Integer> getDStores() {
+        return dStores;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    public Connection getStoredBy() {
+        return storedBy;
+    }
+
+    public String getStoreTag() {
+        return storeTag;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Stores and loads files as Reed-Solomon shards on a Controller started with -Dcontroller.ec=k+m. STORE_EC
+// returns k, m and one DStore per shard; the file is cut into k data shards of ceil(size / k) bytes, m parity
+// shards are computed, and each DStore is sent its shard as an ordinary STORE with a one-byte shard index in
+// front. LOAD_EC lists the holders; any k distinct shards rebuild the file. Compares against a replicated store, e.g.
+//   java ErasureClient <cport> <timeout> <file size KB> <files>
+
+public class ErasureClient {
+
+    private final int cport;
+    private final int timeout;
+    private final ExecutorService workers;
+    private SocketConnection controller;
+
+    public ErasureClient(int cport, int timeout) {
+        this.cport = cport;
+        this.timeout = timeout;
+        workers = Workers.create();
+    }
+
+    public static void main(String[] args) throws Exception {
+        var client = new ErasureClient(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+        client.connect();
+        var replicated = new Client(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Logger.LoggingType.NO_LOG);
+        replicated.connect();
+        var data = new byte[Integer.parseInt(args[2]) * 1024];
+        new Random(42).nextBytes(data);
+        var files = Integer.parseInt(args[3]);
+        var start = System.nanoTime();
+        for (int i = 0; i < files; i++) {
+            replicated.store("replicated" + i, data);
+        }
+        var replicatedStore = (System.nanoTime() - start) / 1e9;
+        start = System.nanoTime();
+        for (int i = 0; i < files; i++) {
+            client.store("coded" + i, data);
+        }
+        var codedStore = (System.nanoTime() - start) / 1e9;
+        start = System.nanoTime();
+        for (int i = 0; i < files; i++) {
+            if (!Arrays.equals(data, client.load("coded" + i))) throw new IOException("coded" + i + " loaded wrongly");
+        }
+        var codedLoad = (System.nanoTime() - start) / 1e9;
+        var bytes = (double) data.length * files / (1 << 20);
+        System.out.println(String.format("files=%d size=%dKB replicatedStore=%.0fMB/s codedStore=%.0fMB/s codedLoad=%.0fMB/s",
+                files, data.length / 1024, bytes / replicatedStore, bytes / codedStore, bytes / codedLoad));
+        replicated.disconnect();
+        client.disconnect();
+        System.exit(0);
+    }
+
+    public void connect() throws IOException {
+        controller = new SocketConnection(new Socket("localhost", cport));
+        controller.setTimeout(timeout);
+    }
+
+    public void disconnect() {
+        controller.close();
+        workers.shutdown();
+    }
+
+    public void store(String filename, byte[] data) throws IOException {
+        var reply = request("STORE_EC " + filename + " " + data.length);
+        switch (reply[0]) {
+            case "STORE_TO_EC" -> {
+            }
+            case "ERROR_FILE_ALREADY_EXISTS" -> throw new FileAlreadyExistsException(filename);
+            case "ERROR_NOT_ENOUGH_DSTORES" -> throw new NotEnoughDstoresException();
+            default -> throw new IOException("Storing " + filename + " failed: " + String.join(" ", reply));
+        }
+
+        // STORE_TO_EC <k> <m> <port>...
+
+        var dataShards = Integer.parseInt(reply[1]);
+        var codec = new ReedSolomon(dataShards, Integer.parseInt(reply[2]));
+        var length = (data.length + dataShards - 1) / dataShards;
+        var shards = new byte[reply.length - 3][length + 1];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i][0] = (byte) i;
+            if (i < dataShards && i * length < data.length) {
+                System.arraycopy(data, i * length, shards[i], 1, Math.min(length, data.length - i * length));
+            }
+        }
+        codec.encode(shards, 1, length);
+        var sent = new ArrayList<Future<?>>();
+        for (int i = 0; i < shards.length; i++) {
+            var port = Integer.parseInt(reply[3 + i]);
+            var shard = shards[i];
+            sent.add(workers.submit(() -> {
+                sendShard(port, filename, shard);
+                return null;
+            }));
+        }
+        await(sent, filename);
+        synchronized (this) {
+            var line = controller.getReader().readLine();
+            if (!"STORE_COMPLETE".equals(line)) throw new IOException("Storing " + filename + " failed: " + line);
+        }
+    }
+
+    public byte[] load(String filename) throws IOException {
+        var reply = request("LOAD_EC " + filename);
+        switch (reply[0]) {
+            case "LOAD_EC_FROM" -> {
+            }
+            case "ERROR_FILE_DOES_NOT_EXIST" -> throw new FileDoesNotExistException(filename);
+            case "ERROR_NOT_ENOUGH_DSTORES" -> throw new NotEnoughDstoresException();
+            default -> throw new IOException("Loading " + filename + " failed: " + String.join(" ", reply));
+        }
+
+        // LOAD_EC_FROM <size> <k> <m> <port>...: k holders are read at once, and another for each that fails or
+        // repeats a shard already read.
+
+        var size = Integer.parseInt(reply[1]);
+        var dataShards = Integer.parseInt(reply[2]);
+        var codec = new ReedSolomon(dataShards, Integer.parseInt(reply[3]));
+        var width = dataShards + codec.getParityShards();
+        var length = (size + dataShards - 1) / dataShards;
+        var shards = new byte[width][];
+        var present = new boolean[width];
+        var count = 0;
+        var next = 4;
+        while (count < dataShards && next < reply.length) {
+            var fetches = new ArrayList<Future<byte[]>>();
+            while (fetches.size() < dataShards - count && next < reply.length) {
+                var port = Integer.parseInt(reply[next++]);
+                fetches.add(workers.submit(() -> fetchShard(port, filename, length + 1)));
+            }
+            for (var fetch : fetches) {
+                try {
+                    var shard = fetch.get();
+                    var index = shard[0] & 0xff;
+                    if (index < width && !present[index]) {
+                        shards[index] = shard;
+                        present[index] = true;
+                        count++;
+                    }
+                } catch (ExecutionException e) {
+                    System.err.println("Shard of " + filename + " unavailable: " + e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted loading " + filename, e);
+                }
+            }
+        }
+        if (count < dataShards) throw new IOException("Only " + count + " of " + dataShards + " shards of " + filename + " readable");
+        var missingData = false;
+        for (int i = 0; i < width; i++) {
+            if (present[i]) continue;
+            shards[i] = new byte[length + 1];
+            missingData |= i < dataShards;
+        }
+        if (missingData) codec.decode(shards, present, 1, length);
+        var data = new byte[size];
+        for (int i = 0; i < dataShards && i * length < size; i++) {
+            System.arraycopy(shards[i], 1, data, i * length, Math.min(length, size - i * length));
+        }
+        return data;
+    }
+
+    private synchronized String[] request(String msg) throws IOException {
+        controller.send(msg);
+        var line = controller.getReader().readLine();
+        if (line == null) throw new IOException("Controller closed the connection");
+        return line.split(" ");
+    }
+
+    private void sendShard(int port, String filename, byte[] shard) throws IOException {
+        try (var socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(timeout);
+            var link = new SocketConnection(socket);
+            link.send("STORE " + filename + " " + shard.length);
+            if (!"ACK".equals(link.getReader().readLine())) throw new IOException("No ACK from DStore " + port);
+            socket.getOutputStream().write(shard);
+            socket.getOutputStream().flush();
+        }
+    }
+
+    private byte[] fetchShard(int port, String filename, int length) throws IOException {
+        try (var socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(timeout);
+            new SocketConnection(socket).send("LOAD_DATA " + filename + " 0 " + length);
+            var shard = new byte[length];
+            new DataInputStream(socket.getInputStream()).readFully(shard);
+            return shard;
+        }
+    }
+
+    private static void await(List<Future<?>> futures, String filename) throws IOException {
+        for (var future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Storing a shard of " + filename + " failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted storing " + filename, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+// Single-threaded selector loop serving the Controller's line protocol without a thread per connection.
+
+class EventLoop implements Runnable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TICK = 100;
+
+    private final int port;
+    private final Controller controller;
+    private final ByteBuffer readBuffer;
+    private Selector selector;
+    private volatile boolean open;
+
+    public EventLoop(int port, Controller controller) {
+        this.port = port;
+        this.controller = controller;
+        readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    @Override
+    public void run() {
+        open = true;
+        try (var server = ServerSocketChannel.open()) {
+            selector = Selector.open();
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            while (open) {
+                selector.select(TICK);
+                var keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    var key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) accept(server);
+                        if (key.isValid() && key.isReadable()) read(key);
+                        if (key.isValid() && key.isWritable()) ((ChannelConnection) key.attachment()).flush();
+                    } catch (CancelledKeyException | IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error creating ServerSocketChannel in Controller: " + e);
+        }
+    }
+
+    public void stop() {
+        open = false;
+        if (selector != null) selector.wakeup();
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            var key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new ChannelConnection(channel, key));
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        var connection = (ChannelConnection) key.attachment();
+        readBuffer.clear();
+        if (connection.getChannel().read(readBuffer) == -1) {
+            close(key);
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+
+            // Once framing is agreed, the rest of the buffer and everything after it is frames.
+
+            if (connection.isFramed()) {
+                var frames = connection.getFrames();
+                frames.feed(readBuffer);
+                while (frames.next()) {
+                    try {
+                        controller.handleFrame(frames, connection);
+                    } catch (Exception e) {
+                        System.err.println("Error handling frame with opcode " + frames.opcode() + " from " + connection + ": " + e);
+                        e.printStackTrace();
+                    }
+                }
+                return;
+            }
+            var b = readBuffer.get();
+            if (b != '\n') {
+                connection.append(b);
+                continue;
+            }
+            var msg = connection.takeLine();
+            try {
+                controller.handleMessage(msg, connection);
+            } catch (Exception e) {
+                System.err.println("Error handling message " + msg + " from " + connection + ": " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+        if (key.attachment() instanceof ChannelConnection connection) {
+            controller.connectionClosed(connection);
+        }
+    }
+}
+
+class ChannelConnection implements Connection {
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Deque<ByteBuffer> pending;
+    private byte[] line;
+    private int lineLength;
+    private final FrameDecoder frames;
+    private volatile boolean framed;
+
+    public ChannelConnection(SocketChannel channel, SelectionKey key) {
+        this.channel = channel;
+        this.key = key;
+        pending = new ArrayDeque<>();
+        line = new byte[256];
+        frames = new FrameDecoder();
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    void append(byte b) {
+        if (lineLength == line.length) line = Arrays.copyOf(line, line.length * 2);
+        line[lineLength++] = b;
+    }
+
+    String takeLine() {
+        var length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+        lineLength = 0;
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    FrameDecoder getFrames() {
+        return frames;
+    }
+
+    // Writes straight to the channel when nothing is queued, otherwise leaves the rest for OP_WRITE.
+
+    @Override
+    public synchronized void send(String msg) throws IOException {
+        pending.add(framed ? Frames.line(msg) : ByteBuffer.wrap((msg + "\n").getBytes(StandardCharsets.UTF_8)));
+        if (pending.size() == 1) flush();
+    }
+
+    @Override
+    public synchronized void send(List<String> msgs) throws IOException {
+        if (!framed) {
+            send(String.join("\n", msgs));
+            return;
+        }
+        var idle = pending.isEmpty();
+        for (var msg : msgs) {
+            pending.add(Frames.line(msg));
+        }
+        if (idle) flush();
+    }
+
+    @Override
+    public void setFramed() {
+        framed = true;
+    }
+
+    @Override
+    public boolean isFramed() {
+        return framed;
+    }
+
+    @Override
+    public synchronized void sendFrame(ByteBuffer frame) throws IOException {
+        pending.add(frame);
+        if (pending.size() == 1) flush();
+    }
+
+    synchronized void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            var buf = pending.peek();
+            channel.write(buf);
+            if (buf.hasRemaining()) break;
+            pending.poll();
+        }
+        if (!key.isValid()) return;
+        key.interestOps(pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        if (!pending.isEmpty()) key.selector().wakeup();
+    }
+
+    // Operations expire on the Controller's own deadlines, so a selector link needs no read timeout.
+
+    @Override
+    public void setTimeout(int timeout) {
+    }
+
+    @Override
+    public void close() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return channel.toString();
+    }
+}
\ No newline at end of file
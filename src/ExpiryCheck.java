@@ -0,0 +1,101 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Checks that STOREs and REMOVEs whose acks never arrive are abandoned once the Controller's timeout has passed,
+// while the DStore link stays busy, and that nothing younger is touched. A client that sent STORE and died
+// before uploading must not hold the name for good, e.g.
+//   java ExpiryCheck
+
+public class ExpiryCheck {
+
+    private static final int TIMEOUT = 300;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("controller.wal", "false");
+        var controller = new Controller(0, 1, TIMEOUT, Integer.MAX_VALUE);
+        var dStore = new Recorder();
+        var client = new Recorder();
+        controller.handleMessage("JOIN 5000", dStore);
+        var failures = 0;
+
+        // Abandoned STORE: the name is taken until the timeout, then free again.
+
+        controller.handleMessage("STORE abandoned 10", client);
+        failures += expect(client, "STORE_TO 5000");
+        controller.expireOperations();
+        controller.handleMessage("STORE abandoned 10", client);
+        failures += expect(client, "ERROR_FILE_ALREADY_EXISTS");
+        expireAfterHeartbeats(controller, dStore);
+        controller.handleMessage("STORE abandoned 10", client);
+        failures += expect(client, "STORE_TO 5000");
+
+        // REMOVE whose ack never comes: the file is dropped from the index once the timeout passes.
+
+        controller.handleMessage("STORE_ACK abandoned", dStore);
+        failures += expect(client, "STORE_COMPLETE");
+        controller.handleMessage("REMOVE abandoned", client);
+        controller.expireOperations();
+        controller.handleMessage("LOAD abandoned", client);
+        failures += expect(client, "ERROR_FILE_DOES_NOT_EXIST");
+        expireAfterHeartbeats(controller, dStore);
+        controller.handleMessage("LIST", client);
+        failures += expect(client, "LIST");
+        controller.handleMessage("STORE abandoned 10", client);
+        failures += expect(client, "STORE_TO 5000");
+
+        System.out.println(failures == 0 ? "EXPIRY_OK" : failures + " expiry checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // The DStore keeps heartbeating throughout, as a live one would.
+
+    private static void expireAfterHeartbeats(Controller controller, Recorder dStore) throws InterruptedException {
+        for (int i = 0; i < 2 * TIMEOUT / 50; i++) {
+            controller.handleMessage("HEARTBEAT 0 0", dStore);
+            Thread.sleep(50);
+        }
+        controller.expireOperations();
+    }
+
+    private static int expect(Recorder connection, String expected) {
+        String got;
+        synchronized (connection) {
+            got = connection.replies.isEmpty() ? null : connection.replies.remove(0);
+        }
+        if (expected.equals(got)) return 0;
+        System.out.println("Expected " + expected + ", got " + got);
+        return 1;
+    }
+
+    private static class Recorder implements Connection {
+
+        private final List<String> replies = new ArrayList<>();
+
+        @Override
+        public synchronized void send(String msg) {
+            replies.addAll(List.of(msg.split("\n")));
+        }
+
+        @Override
+        public void setTimeout(int timeout) {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void setFramed() {
+        }
+
+        @Override
+        public boolean isFramed() {
+            return false;
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer frame) {
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Phi accrual failure detector over DStore heartbeats. Phi is -log10 of the probability that a heartbeat is
+// still on its way after the current silence, given the recent inter-arrival times, so a threshold of 8 means
+// one false suspicion in 10^8 under the observed distribution. Set with -Dcontroller.phi (default 8).
+
+class FailureDetector {
+
+    private static final int WINDOW = 100;
+    private static final double MIN_STD_DEV = 200;
+
+    private final long interval;
+    private final double threshold;
+    private final Map<Integer, Arrivals> arrivals;
+
+    public FailureDetector(long interval, double threshold) {
+        this.interval = interval;
+        this.threshold = threshold;
+        arrivals = new ConcurrentHashMap<>();
+    }
+
+    // First contact only starts the clock; there is no earlier arrival to measure an interval from.
+
+    public void heartbeat(int dStore) {
+        var a = arrivals.get(dStore);
+        if (a == null) arrivals.putIfAbsent(dStore, new Arrivals(interval));
+        else a.record(System.currentTimeMillis());
+    }
+
+    // A DStore that (re)joins starts a fresh window, so the gap while it restarted is not taken for a heartbeat
+    // interval.
+
+    public void joined(int dStore) {
+        arrivals.put(dStore, new Arrivals(interval));
+    }
+
+    public void remove(int dStore) {
+        arrivals.remove(dStore);
+    }
+
+    public double phi(int dStore, long now) {
+        var a = arrivals.get(dStore);
+        return a == null ? 0 : a.phi(now);
+    }
+
+    public boolean suspect(int dStore, long now) {
+        return phi(dStore, now) > threshold;
+    }
+
+    // A ring of the last WINDOW intervals with running sums. It starts seeded with the expected interval so the
+    // first judgements after a JOIN are neither hair-trigger nor blind.
+
+    private static class Arrivals {
+
+        private final long[] intervals = new long[WINDOW];
+        private int count;
+        private int next;
+        private double sum;
+        private double sumSquares;
+        private long last;
+
+        Arrivals(long expected) {
+            add(expected);
+            last = System.currentTimeMillis();
+        }
+
+        synchronized void record(long now) {
+            add(now - last);
+            last = now;
+        }
+
+        private void add(long interval) {
+            if (count == WINDOW) {
+                sum -= intervals[next];
+                sumSquares -= (double) intervals[next] * intervals[next];
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % WINDOW;
+            sum += interval;
+            sumSquares += (double) interval * interval;
+        }
+
+        // Logistic approximation of the normal CDF, accurate to about 1e-4.
+
+        synchronized double phi(long now) {
+            var mean = sum / count;
+            var stdDev = Math.max(MIN_STD_DEV, Math.sqrt(Math.max(0, sumSquares / count - mean * mean)));
+            var y = (now - last - mean) / stdDev;
+            var e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            return now - last > mean ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+        }
+    }
+}
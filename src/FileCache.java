@@ -0,0 +1,212 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+
+// Byte-bounded W-TinyLFU cache of whole files in direct buffers, so hot files are served without touching the
+// file system and without growing the heap. New files enter a small LRU window; a file leaving the window only
+// displaces files from the main LRU if it has been requested more often than all of them, which keeps one-off
+// loads of cold files from flushing the popular ones. Set the size with -Ddstore.cache.bytes (0 disables it).
+
+class FileCache {
+
+    private final long capacity;
+    private final long windowCapacity;
+    private final long maxEntry;
+    private final LinkedHashMap<String, ByteBuffer> window;
+    private final LinkedHashMap<String, ByteBuffer> main;
+    private final FrequencySketch sketch;
+    private long windowBytes;
+    private long mainBytes;
+    private long epoch;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    public FileCache(long capacity) {
+        this.capacity = capacity;
+        windowCapacity = Math.max(1, capacity / 100);
+        maxEntry = Math.min(Integer.MAX_VALUE, capacity / 4);
+        window = new LinkedHashMap<>(16, 0.75f, true);
+        main = new LinkedHashMap<>(16, 0.75f, true);
+        sketch = new FrequencySketch(1 << 16);
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    // Returns a private view of the cached contents, or null on a miss. Evicted buffers stay valid for
+    // readers still holding a view; the memory is released once the last view is gone.
+
+    public synchronized ByteBuffer get(String name) {
+        if (!isEnabled()) return null;
+        sketch.increment(name);
+        var buf = window.get(name);
+        if (buf == null) buf = main.get(name);
+        if (buf == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return buf.duplicate();
+    }
+
+    // Any invalidation after epoch() was read voids an offer made with it, so a file removed or replaced while
+    // being read into memory is never cached.
+
+    public synchronized long epoch() {
+        return epoch;
+    }
+
+    // Decides before reading whether the file would be kept, so a miss on a file that is already cached, was
+    // invalidated meanwhile or would lose TinyLFU admission costs no read and no buffer. Admission is decided
+    // again once the file is in memory, since the cache may have changed while it was read.
+
+    public void offer(String name, File file, long seen) throws IOException {
+        var length = file.length();
+        if (!isEnabled() || length > maxEntry) return;
+        synchronized (this) {
+            if (seen != epoch || window.containsKey(name) || main.containsKey(name)) return;
+            if (length > windowCapacity && victims(name, length) < 0) {
+                rejections++;
+                return;
+            }
+        }
+        ByteBuffer buf;
+        try (var in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buf = ByteBuffer.allocateDirect((int) in.size());
+            while (buf.hasRemaining()) {
+                if (in.read(buf) == -1) return;
+            }
+        }
+        buf.flip();
+        synchronized (this) {
+            if (seen != epoch || window.containsKey(name) || main.containsKey(name)) return;
+            if (buf.remaining() > windowCapacity) {
+                admit(name, buf);
+                return;
+            }
+            window.put(name, buf);
+            windowBytes += buf.remaining();
+            while (windowBytes > windowCapacity) {
+                var eldest = window.entrySet().iterator().next();
+                window.remove(eldest.getKey());
+                windowBytes -= eldest.getValue().remaining();
+                admit(eldest.getKey(), eldest.getValue());
+            }
+        }
+    }
+
+    public synchronized void invalidate(String name) {
+        epoch++;
+        var buf = window.remove(name);
+        if (buf != null) windowBytes -= buf.remaining();
+        buf = main.remove(name);
+        if (buf != null) mainBytes -= buf.remaining();
+    }
+
+    public synchronized String stats() {
+        var requests = hits + misses;
+        return "hits=" + hits + " misses=" + misses + " hitRatio=" + String.format("%.3f", requests == 0 ? 0 : (double) hits / requests)
+                + " evictions=" + evictions + " rejections=" + rejections + " entries=" + (window.size() + main.size())
+                + " bytes=" + (windowBytes + mainBytes) + "/" + capacity;
+    }
+
+    // TinyLFU admission: the candidate must be more frequent than every main-LRU victim it would displace.
+
+    private void admit(String name, ByteBuffer buf) {
+        var size = buf.remaining();
+        var victims = victims(name, size);
+        if (victims < 0) {
+            rejections++;
+            return;
+        }
+        var it = main.entrySet().iterator();
+        for (int i = 0; i < victims; i++) {
+            mainBytes -= it.next().getValue().remaining();
+            it.remove();
+            evictions++;
+        }
+        main.put(name, buf);
+        mainBytes += size;
+    }
+
+    // How many main-LRU entries, from the eldest, would make room for size bytes of name; -1 if name loses to one.
+
+    private int victims(String name, long size) {
+        var needed = mainBytes + size - (capacity - windowCapacity);
+        var frequency = sketch.frequency(name);
+        var freed = 0L;
+        var victims = 0;
+        for (var it = main.entrySet().iterator(); freed < needed && it.hasNext(); victims++) {
+            var victim = it.next();
+            if (sketch.frequency(victim.getKey()) >= frequency) return -1;
+            freed += victim.getValue().remaining();
+        }
+        return victims;
+    }
+}
+
+// Count-min sketch of recent request frequencies with 4-bit counters in four rows, two counters to a byte. Every
+// counter is halved after 10 * width increments, so popularity ages out.
+
+class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private final byte[][] rows;
+    private final int mask;
+    private final int resetAt;
+    private int additions;
+
+    public FrequencySketch(int width) {
+        rows = new byte[SEEDS.length][width / 2];
+        mask = width - 1;
+        resetAt = 10 * width;
+    }
+
+    public void increment(String key) {
+        var h = key.hashCode();
+        for (int i = 0; i < rows.length; i++) {
+            var j = index(h, i);
+            if (counter(rows[i], j) < 15) rows[i][j >> 1] += (byte) (1 << shift(j));
+        }
+        if (++additions == resetAt) {
+
+            // Halves both counters of a byte at once; the mask drops the bit shifted from the high into the low one.
+
+            for (var row : rows) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = (byte) ((row[j] & 0xff) >>> 1 & 0x77);
+                }
+            }
+            additions /= 2;
+        }
+    }
+
+    public int frequency(String key) {
+        var h = key.hashCode();
+        var res = 15;
+        for (int i = 0; i < rows.length; i++) {
+            res = Math.min(res, counter(rows[i], index(h, i)));
+        }
+        return res;
+    }
+
+    private static int counter(byte[] row, int j) {
+        return row[j >> 1] >> shift(j) & 0xf;
+    }
+
+    private static int shift(int j) {
+        return (j & 1) << 2;
+    }
+
+    private int index(int hash, int row) {
+        var h = (hash + SEEDS[row]) * SEEDS[row];
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Reads frames into one reusable array and decodes fields straight out of it, so decoding allocates nothing
+// beyond the strings a message carries; the array only grows when a larger frame arrives. Frames come either
+// from a blocking stream, one at a time, or from a selector loop, fed whatever bytes have arrived.
+
+class FrameDecoder {
+
+    private byte[] data = new byte[4096];
+    private int start;
+    private int filled;
+    private int pos;
+    private int end;
+    private byte opcode;
+
+    // Blocks for the next frame; false at end of stream.
+
+    public boolean read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        check(length);
+        if (length > data.length) data = new byte[Math.max(length, 2 * data.length)];
+        in.readFully(data, 0, length);
+        start = filled = 0;
+        opcode = data[0];
+        pos = 1;
+        end = length;
+        return true;
+    }
+
+    // Appends newly arrived bytes. Only call once the last frame from next() has been handled.
+
+    public void feed(ByteBuffer in) {
+        if (start > 0) {
+            System.arraycopy(data, start, data, 0, filled - start);
+            filled -= start;
+            start = 0;
+        }
+        ensure(filled + in.remaining());
+        var n = in.remaining();
+        in.get(data, filled, n);
+        filled += n;
+    }
+
+    // Moves to the next whole frame fed so far, if there is one.
+
+    public boolean next() throws IOException {
+        if (filled - start < 4) return false;
+        var length = getInt(start);
+        check(length);
+        if (filled - start - 4 < length) return false;
+        opcode = data[start + 4];
+        pos = start + 5;
+        end = start + 4 + length;
+        start = end;
+        return true;
+    }
+
+    public byte opcode() {
+        return opcode;
+    }
+
+    public boolean hasRemaining() {
+        return pos < end;
+    }
+
+    public int readInt() {
+        need(4);
+        var res = getInt(pos);
+        pos += 4;
+        return res;
+    }
+
+    public String readString() {
+        need(2);
+        var length = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+        pos += 2;
+        need(length);
+        var res = new String(data, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return res;
+    }
+
+    public String readLine() {
+        var res = new String(data, pos, end - pos, StandardCharsets.UTF_8);
+        pos = end;
+        return res;
+    }
+
+    private int getInt(int at) {
+        return ((data[at] & 0xff) << 24) | ((data[at + 1] & 0xff) << 16) | ((data[at + 2] & 0xff) << 8) | (data[at + 3] & 0xff);
+    }
+
+    private void need(int n) {
+        if (end - pos < n) throw new IllegalArgumentException("Truncated frame with opcode " + opcode);
+    }
+
+    private void ensure(int capacity) {
+        if (capacity > data.length) data = Arrays.copyOf(data, Math.max(capacity, 2 * data.length));
+    }
+
+    private static void check(int length) throws IOException {
+        if (length < 1 || length > Frames.MAX_LENGTH) throw new IOException("Bad frame length " + length);
+    }
+}
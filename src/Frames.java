@@ -0,0 +1,45 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Optional binary framing for links to the Controller. A peer sends the text line BINARY; once the Controller has
+// answered BINARY_OK, both directions carry frames instead of lines:
+//   <int length> <byte opcode> <payload>
+// where length counts the opcode and payload. The messages the Controller receives most often have their own
+// opcode and a fixed layout, so it dispatches on one byte and reads fields in place instead of splitting a line
+// and testing prefixes; any other message travels as a LINE frame holding its usual text. Strings are an unsigned
+// short byte count followed by UTF-8.
+
+class Frames {
+
+    static final byte LINE = 0;             // <UTF-8 text>
+    static final byte HEARTBEAT = 1;        // <int transfers> <int load latency>
+    static final byte STORE_ACK = 2;        // <string file>...
+    static final byte REMOVE_ACK = 3;       // <string file>...
+    static final byte FILE_MISSING = 4;     // <string file>..., the DStore's ERROR_FILE_DOES_NOT_EXIST
+    static final int MAX_LENGTH = 64 << 20;
+
+    public static ByteBuffer line(String msg) {
+        var bytes = msg.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(5 + bytes.length).putInt(1 + bytes.length).put(LINE).put(bytes).flip();
+    }
+
+    public static ByteBuffer heartbeat(int transfers, int latency) {
+        return ByteBuffer.allocate(13).putInt(9).put(HEARTBEAT).putInt(transfers).putInt(latency).flip();
+    }
+
+    public static ByteBuffer files(byte opcode, List<String> names) {
+        var encoded = new byte[names.size()][];
+        var length = 1;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+            if (encoded[i].length > 0xffff) throw new IllegalArgumentException("Filename too long to frame: " + names.get(i));
+            length += 2 + encoded[i].length;
+        }
+        var buf = ByteBuffer.allocate(4 + length).putInt(length).put(opcode);
+        for (var name : encoded) {
+            buf.putShort((short) name.length).put(name);
+        }
+        return buf.flip();
+    }
+}
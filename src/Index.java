@@ -0,0 +1,251 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+class Index {
+
+    private final PlacementPolicy placement;
+    private final MetadataLog log;
+    private final Map<String, DistributedFile> files;
+    private final Map<Integer, Set<String>> byDStore;
+    private final Set<String> underReplicated;
+    private final Set<DistributedFile> inProgress;
+    private final Map<Integer, Long> lostAt;
+    private final NavigableSet<String> availableFiles;
+    private final AtomicLong availableVersion;
+    private final Object[] refreshLocks;
+    private volatile Listing availableCache;
+
+    public Index(PlacementPolicy placement, MetadataLog log) {
+        this.placement = placement;
+        this.log = log;
+        files = new ConcurrentHashMap<>();
+        byDStore = new ConcurrentHashMap<>();
+        underReplicated = ConcurrentHashMap.newKeySet();
+        inProgress = ConcurrentHashMap.newKeySet();
+        lostAt = new ConcurrentHashMap<>();
+        availableFiles = new ConcurrentSkipListSet<>();
+        availableVersion = new AtomicLong();
+        availableCache = new Listing(0, "");
+        refreshLocks = new Object[64];
+        Arrays.setAll(refreshLocks, i -> new Object());
+    }
+
+    public boolean containsFile(String filename) {
+        return files.containsKey(filename);
+    }
+
+    public DistributedFile getFile(String filename) {
+        return files.get(filename);
+    }
+
+    public Collection<DistributedFile> getFiles() {
+        return files.values();
+    }
+
+    // LIST reply is rebuilt only after the set of available files changes. The set is a concurrent skip list, so
+    // neither a rebuild nor a LIST_PAGE scan holds up stores and removes; a rebuild that overlaps a change is
+    // tagged with the version it started from and is redone by the next LIST.
+
+    public String getAvailableFiles() {
+        var cached = availableCache;
+        var version = availableVersion.get();
+        if (cached.version() == version) return cached.text();
+        var res = new StringBuilder();
+        for (var f : availableFiles) {
+            res.append(" ").append(f);
+        }
+        availableCache = new Listing(version, res.toString());
+        return availableCache.text();
+    }
+
+    public NavigableSet<String> getAvailableFileSet() {
+        return availableFiles;
+    }
+
+    public boolean transition(DistributedFile f, State from, State to) {
+        if (!f.transition(from, to)) return false;
+        if (to == State.REMOVE_IN_PROGRESS) inProgress.add(f);
+        if (log != null && to == State.STORE_COMPLETE) log.complete(f);
+        if (log != null && from == State.STORE_COMPLETE) log.removed(f.getFilename());
+        refresh(f);
+        return true;
+    }
+
+    // The last metadata record the calling thread logged since it last asked, or 0 if none.
+
+    public long takeLogged() {
+        return log == null ? 0 : log.takeAppended();
+    }
+
+    public void afterLogged(long seq, Runnable action) {
+        if (log != null && seq > 0) log.afterSync(seq, action);
+        else action.run();
+    }
+
+    // Re-reads the state under a lock striped by filename, so whichever refresh of a name runs last wins with the
+    // latest state, even across the instances a name is stored as over time. Readers of the view take no lock.
+
+    private void refresh(DistributedFile f) {
+        synchronized (refreshLocks[f.getFilename().hashCode() & (refreshLocks.length - 1)]) {
+            if (f.getState() == State.STORE_COMPLETE && files.get(f.getFilename()) == f) {
+                if (availableFiles.add(f.getFilename())) availableVersion.incrementAndGet();
+            } else if (availableFiles.remove(f.getFilename())) {
+                availableVersion.incrementAndGet();
+            }
+        }
+    }
+
+    // Only files with a STORE or REMOVE in progress are visited, so the sweep costs nothing for settled files.
+
+    public void expireOperations(long startedBefore) {
+        for (var it = inProgress.iterator(); it.hasNext(); ) {
+            var f = it.next();
+            if (!f.isInProgress() || files.get(f.getFilename()) != f) {
+                it.remove();
+            } else if (f.getStartedAt() < startedBefore
+                    && (transition(f, State.STORE_IN_PROGRESS, State.REMOVE_COMPLETE) || transition(f, State.REMOVE_IN_PROGRESS, State.REMOVE_COMPLETE))) {
+                it.remove();
+                removeFile(f);
+                System.out.println("Abandoned unacknowledged operation on " + f.getFilename());
+            }
+        }
+    }
+
+    public void removeTimedOutFiles(int dStorePort) {
+        for (var name : filesOn(dStorePort)) {
+            var f = files.get(name);
+            if (f == null) continue;
+            if (transition(f, State.STORE_IN_PROGRESS, State.REMOVE_COMPLETE) || transition(f, State.REMOVE_IN_PROGRESS, State.REMOVE_COMPLETE)) {
+                removeFile(f);
+                System.out.println("Removed file " + f.getFilename() + " for: " + dStorePort);
+            }
+        }
+    }
+
+    // Files each DStore holds, kept alongside the index so rebalance and failures never need a LIST sweep.
+
+    public Set<String> filesOn(int dStore) {
+        var names = byDStore.get(dStore);
+        return names != null ? names : Set.of();
+    }
+
+    public Set<String> getUnderReplicated() {
+        return underReplicated;
+    }
+
+    public void dStoreLost(int dStore) {
+        lostAt.put(dStore, System.currentTimeMillis());
+        removeTimedOutFiles(dStore);
+        var names = byDStore.remove(dStore);
+        if (names == null) return;
+        for (var name : names) {
+            var f = files.get(name);
+            if (f != null && f.removeReplica(dStore) && f.getState() == State.STORE_COMPLETE) {
+                if (log != null) log.replicaDropped(name, dStore);
+                underReplicated.add(name);
+            }
+        }
+    }
+
+    // Returns the reported files the index does not place on dStore. A copy of a file that existed before dStore
+    // was lost and is still under-replicated, with no repair scheduled, is adopted instead. Shards are never
+    // adopted, as their index may have been rebuilt elsewhere meanwhile. Arriving files are left alone, since a
+    // rebalance copy may have landed before its REBALANCE_COMPLETE.
+
+    public List<String> reconcile(int dStore, Map<String, Long> reported, Predicate<String> scheduled, Predicate<String> arriving) {
+        for (var name : new ArrayList<>(filesOn(dStore))) {
+            var f = files.get(name);
+            if (f == null || f.getState() != State.STORE_COMPLETE) continue;
+            var size = reported.get(name);
+            if (size != null && size == f.getStoredSize()) continue;
+            removeReplica(f, dStore);
+            underReplicated.add(name);
+        }
+        var res = new ArrayList<String>();
+        var lost = lostAt.get(dStore);
+        for (var e : reported.entrySet()) {
+            var f = files.get(e.getKey());
+            if (f != null && f.getDStores().contains(dStore) || arriving.test(e.getKey())) continue;
+            if (f != null && lost != null && !f.isErasureCoded() && !scheduled.test(e.getKey()) && f.getState() == State.STORE_COMPLETE && f.getCreatedAt() < lost
+                    && e.getValue() == f.getStoredSize() && f.getDStores().size() < f.getWidth()) {
+                addReplica(f, dStore);
+            } else {
+                res.add(e.getKey());
+            }
+        }
+        return res;
+    }
+
+    public void replicaLost(String name, int dStore) {
+        var f = files.get(name);
+        if (f == null || f.getState() != State.STORE_COMPLETE || !f.getDStores().contains(dStore)) return;
+        removeReplica(f, dStore);
+        underReplicated.add(name);
+        System.out.println("DStore " + dStore + " lost its copy of " + name);
+    }
+
+    // Placement only learns a recovered file's bytes once its DStore is back.
+
+    public void rejoined(int dStore) {
+        var bytes = 0L;
+        for (var name : filesOn(dStore)) {
+            var f = files.get(name);
+            if (f != null) bytes += f.getStoredSize();
+        }
+        placement.stored(dStore, bytes);
+    }
+
+    public void addReplica(DistributedFile f, int dStore) {
+        if (!f.addReplica(dStore)) return;
+        if (log != null && f.getState() == State.STORE_COMPLETE) log.replicaAdded(f.getFilename(), dStore);
+        byDStore.computeIfAbsent(dStore, d -> ConcurrentHashMap.newKeySet()).add(f.getFilename());
+        placement.stored(dStore, f.getStoredSize());
+        if (f.getDStores().size() >= f.getWidth()) underReplicated.remove(f.getFilename());
+    }
+
+    public void removeReplica(DistributedFile f, int dStore) {
+        if (!f.removeReplica(dStore)) return;
+        if (log != null && f.getState() == State.STORE_COMPLETE) log.replicaDropped(f.getFilename(), dStore);
+        filesOn(dStore).remove(f.getFilename());
+        placement.released(dStore, f.getStoredSize());
+    }
+
+    public boolean addFile(DistributedFile f) {
+        if (files.putIfAbsent(f.getFilename(), f) != null) return false;
+        for (var dStore : f.getDStores()) {
+            byDStore.computeIfAbsent(dStore, d -> ConcurrentHashMap.newKeySet()).add(f.getFilename());
+            placement.stored(dStore, f.getStoredSize());
+        }
+        if (f.getDStores().size() < f.getWidth() && f.getState() == State.STORE_COMPLETE) underReplicated.add(f.getFilename());
+        if (f.isInProgress()) inProgress.add(f);
+        refresh(f);
+        return true;
+    }
+
+    public void removeFile(DistributedFile f) {
+        if (!files.remove(f.getFilename(), f)) return;
+        for (var dStore : f.getDStores()) {
+            filesOn(dStore).remove(f.getFilename());
+            placement.released(dStore, f.getStoredSize());
+        }
+        underReplicated.remove(f.getFilename());
+        refresh(f);
+    }
+
+    public void removeFile(String f) {
+        var file = files.get(f);
+        if (file != null) removeFile(file);
+    }
+
+    private record Listing(long version, String text) {
+    }
+}
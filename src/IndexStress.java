@@ -0,0 +1,285 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Drives an in-process Controller from many client threads at once with STORE, REMOVE and LIST on a small pool of
+// filenames, so operations on the same and on neighbouring files keep racing through the index. The DStores are
+// stand-ins that ack every store and remove. Once all clients stop, checks that the index agrees with what the
+// clients were told: a file is listed, loadable and held by R DStores exactly when its completed stores outnumber
+// its completed removes, which can only ever be by one. Runs at 1, 2, 4 ... up to the given number of threads,
+// each on a fresh index, and reports the throughput of each against a single thread, e.g.
+//   java IndexStress <threads> <seconds> <files>
+
+public class IndexStress {
+
+    private static final int R = 3;
+    private static final int DSTORES = 5;
+
+    private final Controller controller;
+    private final Map<Integer, FakeDStore> dStores;
+    private final Map<String, AtomicInteger> stored;
+    private final Map<String, AtomicInteger> removed;
+    private final AtomicInteger operations;
+    private final AtomicInteger failures;
+
+    public IndexStress() {
+        controller = new Controller(0, R, 1000, Integer.MAX_VALUE);
+        dStores = new ConcurrentHashMap<>();
+        stored = new ConcurrentHashMap<>();
+        removed = new ConcurrentHashMap<>();
+        operations = new AtomicInteger();
+        failures = new AtomicInteger();
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("controller.wal", "false");
+        var threads = Integer.parseInt(args[0]);
+        var seconds = Double.parseDouble(args[1]);
+        var files = Integer.parseInt(args[2]);
+
+        // The Controller logs every operation; only this check's own output is kept.
+
+        var out = System.out;
+        var ok = true;
+        var base = 0.0;
+        for (int n = 1; ; n = Math.min(2 * n, threads)) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            var stress = new IndexStress();
+            var elapsed = stress.run(n, seconds, files);
+            var errors = stress.check(files);
+            System.setOut(out);
+            errors.forEach(System.out::println);
+            var rate = stress.operations.get() / elapsed;
+            if (n == 1) base = rate;
+            System.out.printf("%d threads: %.0f ops/s (%.2fx), %d failed, %d inconsistencies%n",
+                    n, rate, rate / base, stress.failures.get(), errors.size());
+            ok &= stress.failures.get() == 0 && errors.isEmpty();
+            if (n == threads) break;
+        }
+        System.out.println(ok ? "STRESS_OK" : "STRESS_FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    // Runs the clients on a fresh index and returns how many seconds they took.
+
+    private double run(int threads, double seconds, int files) throws InterruptedException {
+        join();
+        var start = System.nanoTime();
+        var until = start + (long) (seconds * 1e9);
+        var clients = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            var seed = i;
+            var client = new Thread(() -> run(new Random(seed), files, until));
+            clients.add(client);
+            client.start();
+        }
+        for (var client : clients) {
+            client.join();
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private void join() {
+        for (int i = 0; i < DSTORES; i++) {
+            var dStore = new FakeDStore(5000 + i);
+            dStores.put(dStore.port, dStore);
+            controller.handleMessage("JOIN " + dStore.port, dStore);
+        }
+    }
+
+    private void run(Random random, int files, long until) {
+        var client = new FakeClient();
+        while (System.nanoTime() < until && failures.get() == 0) {
+            var name = "file" + random.nextInt(files);
+            var op = random.nextInt(10);
+            try {
+                if (op < 4) store(client, name);
+                else if (op < 8) remove(client, name);
+                else list(client, files);
+                operations.incrementAndGet();
+            } catch (Exception e) {
+                System.err.println("Operation on " + name + " failed: " + e);
+                failures.incrementAndGet();
+            }
+        }
+    }
+
+    // The client hands each DStore the file by acking it on that DStore's behalf, in a random order.
+
+    private void store(FakeClient client, String name) throws Exception {
+        controller.handleMessage("STORE " + name + " 10", client);
+        var reply = client.take().split(" ");
+        if (reply[0].equals("ERROR_FILE_ALREADY_EXISTS")) return;
+        if (!reply[0].equals("STORE_TO") || reply.length != 1 + R) throw new IllegalStateException("STORE got " + String.join(" ", reply));
+        var targets = new ArrayList<>(Arrays.asList(reply).subList(1, reply.length));
+        Collections.shuffle(targets);
+        for (var port : targets) {
+            var dStore = dStores.get(Integer.parseInt(port));
+            dStore.files.add(name);
+            controller.handleMessage("STORE_ACK " + name, dStore);
+        }
+        var done = client.take();
+        if (!done.equals("STORE_COMPLETE")) throw new IllegalStateException("STORE " + name + " completed with " + done);
+        stored.computeIfAbsent(name, n -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private void remove(FakeClient client, String name) throws Exception {
+        controller.handleMessage("REMOVE " + name, client);
+        var reply = client.take();
+        if (reply.equals("ERROR_FILE_DOES_NOT_EXIST")) return;
+        if (!reply.equals("REMOVE_COMPLETE")) throw new IllegalStateException("REMOVE " + name + " got " + reply);
+        removed.computeIfAbsent(name, n -> new AtomicInteger()).incrementAndGet();
+    }
+
+    // A listing taken mid-run may show any mix of old and new files, but never a name twice or out of order.
+
+    private void list(FakeClient client, int files) throws Exception {
+        controller.handleMessage("LIST", client);
+        var reply = client.take().split(" ");
+        if (!reply[0].equals("LIST")) throw new IllegalStateException("LIST got " + reply[0]);
+        for (int i = 2; i < reply.length; i++) {
+            if (reply[i - 1].compareTo(reply[i]) >= 0) throw new IllegalStateException("LIST out of order at " + reply[i]);
+        }
+        if (reply.length - 1 > files) throw new IllegalStateException("LIST named " + (reply.length - 1) + " files");
+    }
+
+    private List<String> check(int files) throws Exception {
+        var errors = new ArrayList<String>();
+        var expected = new TreeSet<String>();
+        for (int i = 0; i < files; i++) {
+            var name = "file" + i;
+            var net = count(stored, name) - count(removed, name);
+            if (net == 1) expected.add(name);
+            else if (net != 0) errors.add(name + ": " + count(stored, name) + " stores completed against " + count(removed, name) + " removes");
+        }
+
+        var client = new FakeClient();
+        controller.handleMessage("LIST", client);
+        var listed = new TreeSet<>(Arrays.asList(client.take().split(" ")));
+        listed.remove("LIST");
+        if (!listed.equals(expected)) errors.add("LIST gave " + listed + ", expected " + expected);
+        controller.handleMessage("LIST_PAGE " + (files + 1), client);
+        var paged = new TreeSet<>(Arrays.asList(client.take().split(" ")));
+        paged.removeAll(Set.of("LIST_PAGE", "END"));
+        if (!paged.equals(expected)) errors.add("LIST_PAGE gave " + paged + ", expected " + expected);
+
+        for (int i = 0; i < files; i++) {
+            var name = "file" + i;
+            var holders = 0;
+            for (var dStore : dStores.values()) {
+                if (dStore.files.contains(name)) holders++;
+            }
+            controller.handleMessage("LOAD " + name, client);
+            var load = client.take().split(" ");
+            if (expected.contains(name)) {
+                if (holders != R) errors.add(name + " is held by " + holders + " DStores");
+                if (!load[0].equals("LOAD_FROM") || !dStores.get(Integer.parseInt(load[1])).files.contains(name)) {
+                    errors.add("LOAD " + name + " got " + String.join(" ", load));
+                }
+            } else {
+                if (holders != 0) errors.add(name + " was removed but is still held by " + holders + " DStores");
+                if (!load[0].equals("ERROR_FILE_DOES_NOT_EXIST")) errors.add("LOAD of removed " + name + " got " + String.join(" ", load));
+            }
+        }
+        return errors;
+    }
+
+    private static int count(Map<String, AtomicInteger> counts, String name) {
+        var count = counts.get(name);
+        return count == null ? 0 : count.get();
+    }
+
+    // Replies the Controller sends a client, one line at a time.
+
+    private static class FakeClient extends NullConnection {
+
+        private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+
+        @Override
+        public void send(String msg) {
+            replies.addAll(Arrays.asList(msg.split("\n")));
+        }
+
+        public String take() throws InterruptedException {
+            var reply = replies.poll(5, TimeUnit.SECONDS);
+            if (reply == null) throw new IllegalStateException("No reply within 5s");
+            return reply;
+        }
+    }
+
+    // Deletes the files it is told to remove and acks them from its own thread, as a DStore would.
+
+    private class FakeDStore extends NullConnection {
+
+        private final int port;
+        private final Set<String> files = ConcurrentHashMap.newKeySet();
+        private final BlockingQueue<String> removes = new LinkedBlockingQueue<>();
+
+        FakeDStore(int port) {
+            this.port = port;
+            var acker = new Thread(() -> {
+                while (true) {
+                    try {
+                        var msg = removes.take();
+                        var names = msg.substring("REMOVE ".length()).split(" ");
+                        files.removeAll(new HashSet<>(Arrays.asList(names)));
+                        controller.handleMessage("REMOVE_ACK " + String.join(" ", names), this);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            acker.setDaemon(true);
+            acker.start();
+        }
+
+        @Override
+        public void send(String msg) {
+            for (var line : msg.split("\n")) {
+                if (line.startsWith("REMOVE ")) removes.add(line);
+            }
+        }
+    }
+
+    private static class NullConnection implements Connection {
+
+        @Override
+        public void send(String msg) {
+        }
+
+        @Override
+        public void setTimeout(int timeout) {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void setFramed() {
+        }
+
+        @Override
+        public boolean isFramed() {
+            return false;
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer frame) {
+        }
+    }
+}
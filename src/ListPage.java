@@ -0,0 +1,48 @@
+import java.util.NavigableSet;
+
+// LIST_PAGE <limit> [PREFIX <prefix>] [AFTER <name>] answers "LIST_PAGE MORE|END <name>...": at most limit names,
+// in sorted order, that start with prefix and sort after name. A client pages through by sending the last name it
+// was given as AFTER until it sees END. Pages are read straight from a concurrent sorted set, so no lock is held
+// against writers; a name added or removed while paging may or may not appear, but no other name is skipped or
+// repeated.
+
+class ListPage {
+
+    private static final int MAX_LIMIT = Integer.getInteger("dfs.list.page.max", 10_000);
+
+    // A limit that is an int and then only PREFIX and AFTER pairs, checked before reply so a bad request is
+    // answered with an error rather than thrown out of the connection's loop. An empty value is dropped by the
+    // split, so the last key may stand alone.
+
+    public static boolean isRequest(String[] args) {
+        try {
+            Integer.parseInt(args[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return false;
+        }
+        for (int i = 2; i < args.length; i += 2) {
+            if (!args[i].equals("PREFIX") && !args[i].equals("AFTER")) return false;
+        }
+        return true;
+    }
+
+    public static String reply(NavigableSet<String> names, String[] args) {
+        var limit = Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(args[1])));
+        var prefix = "";
+        String after = null;
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            if (args[i].equals("PREFIX")) prefix = args[i + 1];
+            else if (args[i].equals("AFTER")) after = args[i + 1];
+        }
+        var from = after != null && after.compareTo(prefix) >= 0 ? names.tailSet(after, false) : names.tailSet(prefix, true);
+        var page = new StringBuilder();
+        var count = 0;
+        for (var name : from) {
+            if (!name.startsWith(prefix)) break;
+            if (count == limit) return "LIST_PAGE MORE" + page;
+            page.append(" ").append(name);
+            count++;
+        }
+        return "LIST_PAGE END" + page;
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.File;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Measures LOAD_DATA throughput and GC activity against an in-process DStore, e.g.
+//   java LoadBenchmark 4600 1600 1 16 256 4096
+// Sizes are in MB; each file is written straight into the DStore's folder before it is loaded.
+
+public class LoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        var cport = Integer.parseInt(args[0]);
+        var port = Integer.parseInt(args[1]);
+        var sizes = new long[Math.max(1, args.length - 2)];
+        sizes[0] = 1;
+        for (int i = 2; i < args.length; i++) {
+            sizes[i - 2] = Long.parseLong(args[i]);
+        }
+
+        var storage = new File(System.getProperty("user.dir") + "/dStorage");
+        if (!storage.exists() && !storage.mkdir()) {
+            System.err.println("Failure creating /dStorage");
+            System.exit(1);
+        }
+        new Controller(cport, 1, 5000, 10000).start();
+        Thread.sleep(500);
+        new DStore(port, cport, 5000, "bench").start();
+        Thread.sleep(500);
+
+        var buf = ByteBuffer.allocateDirect(1 << 20);
+        for (var mb : sizes) {
+            var name = "bench_" + mb + "MB";
+            var file = new File(storage, "bench/" + name);
+            try (var out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (long i = 0; i < mb; i++) {
+                    buf.clear();
+                    out.write(buf);
+                }
+            }
+
+            var iterations = (int) Math.max(1, Math.min(32, 1024 / mb));
+            var gcCount = gcCount();
+            var gcTime = gcTime();
+            var start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                load(port, name, mb << 20);
+            }
+            var seconds = (System.nanoTime() - start) / 1e9;
+            var gb = (double) (mb << 20) * iterations / (1L << 30);
+            System.out.println(String.format("size=%dMB iterations=%d throughput=%.2fGB/s gcCount=%d gcTime=%dms",
+                    mb, iterations, gb / seconds, gcCount() - gcCount, gcTime() - gcTime));
+            if (!file.delete()) {
+                System.err.println("Failure deleting " + file);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void load(int port, String name, long size) throws Exception {
+        try (var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            var out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("LOAD_DATA " + name);
+            var in = socket.getInputStream();
+            var chunk = new byte[64 * 1024];
+            long received = 0;
+            int n;
+            while (received < size && (n = in.read(chunk)) != -1) {
+                received += n;
+            }
+            if (received != size) {
+                throw new IllegalStateException("Expected " + size + " bytes for " + name + ", received " + received);
+            }
+        }
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(b -> b.getCollectionCount()).sum();
+    }
+
+    private static long gcTime() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(b -> b.getCollectionTime()).sum();
+    }
+}
\ No newline at end of file
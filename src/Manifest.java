@@ -0,0 +1,205 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32C;
+
+// The files a DStore holds, with their sizes and CRC32C checksums, kept in an append-only file next to its folder so
+// a restart knows its contents without listing the directory. A file is added once it has been moved into place
+// and dropped before it is deleted, so every entry names a file that exists. Superseded records are compacted
+// away once they outnumber live ones; a record torn by a crash is truncated off at load. A file carried over from
+// before a restart is checked against its checksum the first time it is read.
+
+class Manifest {
+
+    private static final byte PUT = 1;
+    private static final byte DROP = 2;
+
+    private final File file;
+    private final boolean sync;
+    private final NavigableMap<String, Entry> entries;
+    private FileOutputStream stream;
+    private DataOutputStream out;
+    private long records;
+    private volatile int live;
+
+    public Manifest(File file, File folder, boolean sync) throws IOException {
+        this.file = file;
+        this.sync = sync;
+        entries = new ConcurrentSkipListMap<>();
+        if (file.exists()) {
+            load();
+            live = entries.size();
+        } else {
+
+            // A folder from before manifests were kept is scanned once.
+
+            for (var f : Objects.requireNonNull(folder.listFiles())) {
+                entries.put(f.getName(), new Entry(f.length(), checksum(f), true));
+            }
+            live = entries.size();
+            if (!entries.isEmpty()) System.out.println("Built manifest of " + live + " files in " + folder);
+            compact();
+        }
+        open();
+    }
+
+    public synchronized void put(String name, long size, long checksum) throws IOException {
+        if (entries.put(name, new Entry(size, checksum, true)) == null) live++;
+        append(PUT, name, size, checksum);
+    }
+
+    public synchronized void drop(String name) throws IOException {
+        if (entries.remove(name) == null) return;
+        live--;
+        append(DROP, name, 0, 0);
+        if (records > 1024 && records > 2L * live) {
+            out.close();
+            compact();
+            open();
+        }
+    }
+
+    // Counted separately, since a skip list counts its entries by walking them.
+
+    public int size() {
+        return live;
+    }
+
+    // False if name was loaded from before this process started and f no longer matches its size and checksum.
+    // Each such file is read once, the first time it is asked about; files written since were checksummed as
+    // they arrived. A file replaced while it was being checked is not reported.
+
+    public boolean verify(String name, File f) throws IOException {
+        var entry = entries.get(name);
+        if (entry == null || entry.verified()) return true;
+        if (f.length() == entry.size() && checksum(f) == entry.checksum()) {
+            entries.replace(name, entry, new Entry(entry.size(), entry.checksum(), true));
+            return true;
+        }
+        return entries.get(name) != entry;
+    }
+
+    // Sorted and safe to read while files are added and dropped, so listing never waits on a store.
+
+    public NavigableSet<String> names() {
+        return entries.navigableKeySet();
+    }
+
+    // " <n> (<file> <size>)*", appended to JOIN so the Controller can reconcile its index with this DStore.
+
+    public synchronized String describe() {
+        var res = new StringBuilder().append(" ").append(live);
+        for (var e : entries.entrySet()) {
+            res.append(" ").append(e.getKey()).append(" ").append(e.getValue().size());
+        }
+        return res.toString();
+    }
+
+    // <op> <name> [<size> <checksum>]
+
+    private void append(byte op, String name, long size, long checksum) throws IOException {
+        out.writeByte(op);
+        out.writeUTF(name);
+        if (op == PUT) {
+            out.writeLong(size);
+            out.writeInt((int) checksum);
+        }
+        out.flush();
+        if (sync) stream.getFD().sync();
+        records++;
+    }
+
+    private void load() throws IOException {
+        var valid = 0L;
+        try (var counted = new CountingInputStream(new FileInputStream(file)); var in = new DataInputStream(counted)) {
+            while (true) {
+                try {
+                    var op = in.readByte();
+                    var name = in.readUTF();
+                    if (op == PUT) {
+                        entries.put(name, new Entry(in.readLong(), in.readInt() & 0xffffffffL, false));
+                    } else {
+                        entries.remove(name);
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                valid = counted.count;
+                records++;
+            }
+        }
+        if (valid < file.length()) {
+            System.err.println("Truncating torn manifest record in " + file);
+            try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    private void compact() throws IOException {
+        var tmp = new File(file.getPath() + ".tmp");
+        try (var stream = new FileOutputStream(tmp); var out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+            for (var e : entries.entrySet()) {
+                out.writeByte(PUT);
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().size());
+                out.writeInt((int) e.getValue().checksum());
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        records = live;
+    }
+
+    private void open() throws IOException {
+        stream = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(stream, 4096));
+    }
+
+    private static long checksum(File f) throws IOException {
+        var crc = new CRC32C();
+        try (var in = new FileInputStream(f)) {
+            var buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                crc.update(buf, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    record Entry(long size, long checksum, boolean verified) {
+    }
+
+    // Buffered, and counts the bytes handed on, so load knows where the last whole record ends.
+
+    private static class CountingInputStream extends BufferedInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in, 1 << 16);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            var b = super.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            var n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+// Write-ahead log of the Controller's index, so a restart recovers every stored file and where its replicas are.
+// Only what outlives a restart is logged: a store completing, replicas added and dropped, and a remove starting.
+// Records are appended to an in-memory batch; one flusher thread writes and fdatasyncs whatever has built up, so
+// a burst of mutations shares one sync. Replies that depend on a record are held back until it is durable.
+//
+// Every snapshotEvery records the log rolls over to a new segment and the index is written out as a compact
+// binary snapshot; segments older than the snapshot are then deleted. Recovery reads the snapshot and replays
+// the segments after it. Replay is idempotent, so a snapshot that already contains a replayed record is fine.
+// Each record carries a CRC; replay of a segment stops at the first torn or corrupt record.
+
+class MetadataLog {
+
+    private static final byte COMPLETE = 1;
+    private static final byte REPLICA_ADDED = 2;
+    private static final byte REPLICA_DROPPED = 3;
+    private static final byte REMOVED = 4;
+    private static final int MAX_RECORD = 1 << 20;
+
+    private final File dir;
+    private final boolean fsync;
+    private final long snapshotEvery;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final Deque<Callback> callbacks = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private final ThreadLocal<long[]> appendedBy = ThreadLocal.withInitial(() -> new long[1]);
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private ByteArrayOutputStream spare = new ByteArrayOutputStream();
+    private Supplier<Collection<DistributedFile>> files;
+    private FileChannel segment;
+    private long generation;
+    private long appended;
+    private long durable;
+    private long sinceSnapshot;
+    private boolean snapshotting;
+
+    public MetadataLog(File dir) {
+        this.dir = dir;
+        fsync = Boolean.parseBoolean(System.getProperty("controller.wal.fsync", "true"));
+        snapshotEvery = Long.getLong("controller.wal.snapshot", 1_000_000);
+    }
+
+    // Rebuilds every completed file from the snapshot and the segments after it.
+
+    public Collection<DistributedFile> recover() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        var res = new HashMap<String, DistributedFile>();
+        var snapshot = new File(dir, "snapshot");
+        var first = 0L;
+        if (snapshot.exists()) {
+            try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 1 << 16))) {
+                first = in.readLong();
+                while (in.readBoolean()) {
+                    var f = readFile(in.readUTF(), in);
+                    res.put(f.getFilename(), f);
+                }
+            }
+        }
+        var replayed = 0L;
+        generation = first;
+        for (var segment : segments()) {
+            if (segment < first) continue;
+            replayed += replay(new File(dir, "wal." + segment), res);
+            generation = Math.max(generation, segment + 1);
+        }
+        System.out.println("Recovered " + res.size() + " files from " + dir + ", replayed " + replayed + " log records");
+        sinceSnapshot = replayed;
+        return res.values();
+    }
+
+    // Opens a new segment and starts the flusher. A log that had to be replayed is compacted straight away.
+
+    public void start(Supplier<Collection<DistributedFile>> files) throws IOException {
+        this.files = files;
+        segment = FileChannel.open(new File(dir, "wal." + generation).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        if (sinceSnapshot > 0 || !new File(dir, "snapshot").exists()) {
+            sinceSnapshot = 0;
+            writeSnapshot(generation);
+        }
+        var flusher = new Thread(this::flush, "metadata-log");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public synchronized void complete(DistributedFile f) {
+        begin(COMPLETE, f.getFilename());
+        writeFile(f, recordOut);
+        end();
+    }
+
+    public synchronized void replicaAdded(String filename, int dStore) {
+        begin(REPLICA_ADDED, filename);
+        writeInt(dStore);
+        end();
+    }
+
+    public synchronized void replicaDropped(String filename, int dStore) {
+        begin(REPLICA_DROPPED, filename);
+        writeInt(dStore);
+        end();
+    }
+
+    public synchronized void removed(String filename) {
+        begin(REMOVED, filename);
+        end();
+    }
+
+    // The last record the calling thread appended since it last asked, or 0 if none.
+
+    public long takeAppended() {
+        var mark = appendedBy.get();
+        var res = mark[0];
+        mark[0] = 0;
+        return res;
+    }
+
+    public void afterSync(Runnable action) {
+        long seq;
+        synchronized (this) {
+            seq = appended;
+        }
+        afterSync(seq, action);
+    }
+
+    // Runs action once record seq is durable: at once if it already is, otherwise on the flusher after the sync,
+    // in the order the actions were given. Actions run on the flusher must not block.
+
+    public void afterSync(long seq, Runnable action) {
+        synchronized (this) {
+            if (durable < seq || !callbacks.isEmpty()) {
+                callbacks.add(new Callback(seq, action));
+                notifyAll();
+                return;
+            }
+        }
+        action.run();
+    }
+
+    private void begin(byte op, String filename) {
+        record.reset();
+        try {
+            recordOut.writeByte(op);
+            recordOut.writeUTF(filename);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeInt(int value) {
+        try {
+            recordOut.writeInt(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // <length> <crc> <payload>
+
+    private void end() {
+        var payload = record.toByteArray();
+        crc.reset();
+        crc.update(payload);
+        var header = ByteBuffer.allocate(8).putInt(payload.length).putInt((int) crc.getValue());
+        pending.write(header.array(), 0, 8);
+        pending.write(payload, 0, payload.length);
+        appended++;
+        appendedBy.get()[0] = appended;
+        notifyAll();
+    }
+
+    private void flush() {
+        while (true) {
+            ByteArrayOutputStream batch;
+            long upTo;
+            try {
+                synchronized (this) {
+                    while (pending.size() == 0 && (callbacks.isEmpty() || callbacks.peek().seq > durable)) wait();
+                    batch = pending;
+                    pending = spare;
+                    spare = batch;
+                    upTo = appended;
+                }
+                if (batch.size() > 0) {
+                    var buf = ByteBuffer.wrap(batch.toByteArray());
+                    while (buf.hasRemaining()) {
+                        segment.write(buf);
+                    }
+                    if (fsync) segment.force(false);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+
+                // Without the log nothing can be acknowledged safely.
+
+                System.err.println("Error writing metadata log, stopping Controller: " + e);
+                System.exit(1);
+                return;
+            }
+            var ready = new ArrayList<Runnable>();
+            boolean roll;
+            synchronized (this) {
+                sinceSnapshot += upTo - durable;
+                durable = upTo;
+                batch.reset();
+                for (var callback : callbacks) {
+                    if (callback.seq > durable) break;
+                    ready.add(callback.action);
+                }
+                roll = sinceSnapshot >= snapshotEvery && !snapshotting;
+            }
+            for (var action : ready) {
+                try {
+                    action.run();
+                } catch (Exception e) {
+                    System.err.println("Error sending logged reply: " + e);
+                }
+                synchronized (this) {
+                    callbacks.poll();
+                }
+            }
+            if (roll) roll();
+        }
+    }
+
+    // Switches to a new segment, then snapshots the index on another thread while logging carries on.
+
+    private void roll() {
+        long snapshotGeneration;
+        try {
+            var next = FileChannel.open(new File(dir, "wal." + (generation + 1)).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            segment.close();
+            synchronized (this) {
+                segment = next;
+                snapshotGeneration = ++generation;
+                sinceSnapshot = 0;
+                snapshotting = true;
+            }
+        } catch (IOException e) {
+            System.err.println("Error rolling metadata log: " + e);
+            return;
+        }
+        var writer = new Thread(() -> {
+            try {
+                writeSnapshot(snapshotGeneration);
+            } catch (IOException e) {
+                System.err.println("Error writing metadata snapshot: " + e);
+            } finally {
+                synchronized (this) {
+                    snapshotting = false;
+                }
+            }
+        }, "metadata-snapshot");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Written beside the old snapshot and renamed over it, so a crash mid-write leaves the old one intact.
+
+    private void writeSnapshot(long first) throws IOException {
+        var start = System.nanoTime();
+        var tmp = new File(dir, "snapshot.tmp");
+        var count = 0;
+        try (var stream = new FileOutputStream(tmp); var out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+            out.writeLong(first);
+            for (var f : files.get()) {
+                if (f.getState() != State.STORE_COMPLETE) continue;
+                out.writeBoolean(true);
+                out.writeUTF(f.getFilename());
+                writeFile(f, out);
+                count++;
+            }
+            out.writeBoolean(false);
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, "snapshot").toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for (var segment : segments()) {
+            if (segment < first) Files.deleteIfExists(new File(dir, "wal." + segment).toPath());
+        }
+        System.out.println("Metadata snapshot of " + count + " files written in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+    }
+
+    private List<Long> segments() {
+        var res = new ArrayList<Long>();
+        for (var name : Objects.requireNonNull(dir.list())) {
+            if (name.startsWith("wal.")) res.add(Long.parseLong(name.substring(4)));
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    // A torn, zero-filled or otherwise unreadable record ends the segment: everything before it is kept and
+    // nothing after it is trusted.
+
+    private long replay(File file, Map<String, DistributedFile> files) throws IOException {
+        var count = 0L;
+        try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            var check = new CRC32();
+            while (true) {
+                try {
+                    var length = in.readInt();
+                    var sum = in.readInt();
+                    if (length < 1 || length > MAX_RECORD) break;
+                    var payload = new byte[length];
+                    in.readFully(payload);
+                    check.reset();
+                    check.update(payload);
+                    if ((int) check.getValue() != sum) break;
+                    var record = new DataInputStream(new ByteArrayInputStream(payload));
+                    var op = record.readByte();
+                    var name = record.readUTF();
+                    switch (op) {
+                        case COMPLETE -> files.put(name, readFile(name, record));
+                        case REPLICA_ADDED -> {
+                            var f = files.get(name);
+                            var dStore = record.readInt();
+                            if (f != null) f.addReplica(dStore);
+                        }
+                        case REPLICA_DROPPED -> {
+                            var f = files.get(name);
+                            var dStore = record.readInt();
+                            if (f != null) f.removeReplica(dStore);
+                        }
+                        case REMOVED -> files.remove(name);
+                        default -> throw new IOException("Unknown record type " + op);
+                    }
+                } catch (EOFException e) {
+                    break;
+                } catch (IOException e) {
+                    System.err.println("Stopping replay of " + file + " at record " + count + ": " + e);
+                    break;
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // <size> <data shards> <width> <n> <port>...
+
+    private static void writeFile(DistributedFile f, DataOutputStream out) {
+        try {
+            out.writeLong(f.getSize());
+            out.writeInt(f.getDataShards());
+            out.writeInt(f.getWidth());
+            var dStores = new ArrayList<>(f.getDStores());
+            out.writeInt(dStores.size());
+            for (var dStore : dStores) {
+                out.writeInt(dStore);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static DistributedFile readFile(String filename, DataInputStream in) throws IOException {
+        var f = new DistributedFile(filename, in.readLong(), in.readInt(), in.readInt(), null, "");
+        for (int i = 0, n = in.readInt(); i < n; i++) {
+            f.addReplica(in.readInt());
+        }
+        f.transition(State.STORE_IN_PROGRESS, State.STORE_COMPLETE);
+        return f;
+    }
+
+    private record Callback(long seq, Runnable action) {
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Decides which R DStores receive a new file. Set with -Dcontroller.placement=least-bytes|two-choices|ring|random.
+
+interface PlacementPolicy {
+
+    void addDStore(int port);
+
+    void removeDStore(int port);
+
+    // Returns r distinct ports in chain order, or fewer if not enough DStores have joined.
+
+    Set<Integer> choose(String filename, long size, int r);
+
+    void stored(int port, long size);
+
+    void released(int port, long size);
+
+    static PlacementPolicy create(String name) {
+        return switch (name) {
+            case "random" -> new RandomPlacement();
+            case "two-choices" -> new TwoChoicePlacement();
+            case "ring" -> new RingPlacement(Integer.getInteger("controller.ring.vnodes", 128));
+            case "least-bytes" -> new LeastBytesPlacement();
+            default -> throw new IllegalArgumentException("Unknown placement policy: " + name);
+        };
+    }
+}
+
+// Uniform choice, sampled without copying or shuffling the membership.
+
+class RandomPlacement implements PlacementPolicy {
+
+    protected final List<Integer> ports = new ArrayList<>();
+    protected final Map<Integer, Integer> positions = new HashMap<>();
+    protected final Map<Integer, Long> bytes = new HashMap<>();
+
+    @Override
+    public synchronized void addDStore(int port) {
+        if (positions.putIfAbsent(port, ports.size()) == null) {
+            ports.add(port);
+            bytes.putIfAbsent(port, 0L);
+        }
+    }
+
+    @Override
+    public synchronized void removeDStore(int port) {
+        var i = positions.remove(port);
+        if (i == null) return;
+        var last = ports.remove(ports.size() - 1);
+        if (last != port) {
+            ports.set(i, last);
+            positions.put(last, i);
+        }
+        bytes.remove(port);
+    }
+
+    @Override
+    public synchronized Set<Integer> choose(String filename, long size, int r) {
+        var res = new LinkedHashSet<Integer>();
+        var random = ThreadLocalRandom.current();
+        while (res.size() < Math.min(r, ports.size())) {
+            res.add(ports.get(random.nextInt(ports.size())));
+        }
+        return res;
+    }
+
+    @Override
+    public synchronized void stored(int port, long size) {
+        bytes.computeIfPresent(port, (p, b) -> b + size);
+    }
+
+    @Override
+    public synchronized void released(int port, long size) {
+        bytes.computeIfPresent(port, (p, b) -> Math.max(0, b - size));
+    }
+}
+
+// Power of two choices: each replica goes to the emptier of two random candidates.
+
+class TwoChoicePlacement extends RandomPlacement {
+
+    @Override
+    public synchronized Set<Integer> choose(String filename, long size, int r) {
+        var res = new LinkedHashSet<Integer>();
+        var random = ThreadLocalRandom.current();
+        while (res.size() < Math.min(r, ports.size())) {
+            var a = ports.get(random.nextInt(ports.size()));
+            var b = ports.get(random.nextInt(ports.size()));
+            if (res.contains(a)) a = b;
+            if (res.contains(b)) b = a;
+            res.add(bytes.get(a) <= bytes.get(b) ? a : b);
+        }
+        return res;
+    }
+}
+
+// Keeps DStores ordered by bytes held, so the R emptiest are found in O(R log N).
+
+class LeastBytesPlacement implements PlacementPolicy {
+
+    private final Map<Integer, Long> bytes = new HashMap<>();
+    private final TreeSet<Integer> byLoad = new TreeSet<>((a, b) -> {
+        var c = Long.compare(bytes.get(a), bytes.get(b));
+        return c != 0 ? c : Integer.compare(a, b);
+    });
+
+    @Override
+    public synchronized void addDStore(int port) {
+        if (bytes.putIfAbsent(port, 0L) == null) byLoad.add(port);
+    }
+
+    @Override
+    public synchronized void removeDStore(int port) {
+        if (bytes.containsKey(port)) {
+            byLoad.remove(port);
+            bytes.remove(port);
+        }
+    }
+
+    @Override
+    public synchronized Set<Integer> choose(String filename, long size, int r) {
+        var res = new LinkedHashSet<Integer>();
+        for (var port : byLoad) {
+            if (res.size() == r) break;
+            res.add(port);
+        }
+        return res;
+    }
+
+    @Override
+    public synchronized void stored(int port, long size) {
+        update(port, size);
+    }
+
+    @Override
+    public synchronized void released(int port, long size) {
+        update(port, -size);
+    }
+
+    private void update(int port, long delta) {
+        if (!bytes.containsKey(port)) return;
+        byLoad.remove(port);
+        bytes.put(port, Math.max(0, bytes.get(port) + delta));
+        byLoad.add(port);
+    }
+}
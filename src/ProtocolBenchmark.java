@@ -0,0 +1,104 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+// Compares the Controller's handling of the messages DStores send most, as text lines and as binary frames:
+// a heartbeat through the whole handleMessage or handleFrame dispatch, and decoding a STORE_ACK that names 16
+// files. Each starts from the bytes off the wire and reports time and bytes allocated per message, e.g.
+//   java ProtocolBenchmark <seconds>
+
+public class ProtocolBenchmark {
+
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("controller.wal", "false");
+        var seconds = Double.parseDouble(args[0]);
+        var controller = new Controller(0, 1, 1000, Integer.MAX_VALUE);
+        var dStore = new NullConnection();
+        controller.handleMessage("JOIN 1", dStore);
+        var frames = new FrameDecoder();
+
+        var heartbeatLine = "HEARTBEAT 3 12".getBytes(StandardCharsets.UTF_8);
+        var heartbeatFrame = Frames.heartbeat(3, 12);
+        run("heartbeat text ", seconds, () -> controller.handleMessage(new String(heartbeatLine, StandardCharsets.UTF_8), dStore));
+        run("heartbeat frame", seconds, () -> {
+            frames.feed(heartbeatFrame.rewind());
+            while (frames.next()) controller.handleFrame(frames, dStore);
+        });
+
+        var names = new ArrayList<String>();
+        for (int i = 0; i < 16; i++) {
+            names.add("file" + (1000 + i) + ".txt");
+        }
+        var ackLine = ("STORE_ACK " + String.join(" ", names)).getBytes(StandardCharsets.UTF_8);
+        var ackFrame = Frames.files(Frames.STORE_ACK, names);
+        run("ack decode text ", seconds, () -> {
+            var parts = new String(ackLine, StandardCharsets.UTF_8).split(" ");
+            for (int i = 1; i < parts.length; i++) {
+                sink += parts[i].length();
+            }
+        });
+        run("ack decode frame", seconds, () -> {
+            frames.feed(ackFrame.rewind());
+            while (frames.next()) {
+                while (frames.hasRemaining()) sink += frames.readString().length();
+            }
+        });
+        System.exit(sink == 42 ? 1 : 0);
+    }
+
+    // Warms up for the first half, then measures.
+
+    private static void run(String label, double seconds, Op op) throws Exception {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var warmUntil = System.nanoTime() + (long) (seconds * 5e8);
+        while (System.nanoTime() < warmUntil) {
+            for (int i = 0; i < 1000; i++) op.run();
+        }
+        var ops = 0L;
+        var allocated = threads.getCurrentThreadAllocatedBytes();
+        var start = System.nanoTime();
+        var until = start + (long) (seconds * 5e8);
+        while (System.nanoTime() < until) {
+            for (int i = 0; i < 1000; i++) op.run();
+            ops += 1000;
+        }
+        var elapsed = System.nanoTime() - start;
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+        System.out.println(String.format("%s %6.0f ns/msg %6d B/msg", label, (double) elapsed / ops, allocated / ops));
+    }
+
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    private static class NullConnection implements Connection {
+
+        @Override
+        public void send(String msg) {
+        }
+
+        @Override
+        public void setTimeout(int timeout) {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void setFramed() {
+        }
+
+        @Override
+        public boolean isFramed() {
+            return true;
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer frame) {
+        }
+    }
+}
@@ -0,0 +1,590 @@
+import java.util.*;
+
+// Plans replica moves from the Controller's own index and schedules them as transfers. Repairs of files below R
+// replicas go before balancing moves, and no DStore takes part in more than perDStore transfers at once; each
+// source gets its share as one REBALANCE message and the next share is sent when its REBALANCE_COMPLETE arrives.
+// A lost shard of an erasure-coded file cannot be copied from anywhere, so it is rebuilt by the DStore that will
+// hold it, from k of the surviving shards.
+
+class Rebalancer {
+
+    private static final int LOOKAHEAD = 256;
+
+    private final Controller controller;
+    private final Index index;
+    private final PlacementPolicy placement;
+    private final int R;
+    private final int timeout;
+    private final int perDStore;
+    private final Object planning = new Object();
+    private final Map<Integer, RebalancePlan> inFlight = new HashMap<>();
+    private final Map<Integer, Deque<RebalanceTask>> repairs = new HashMap<>();
+    private final Map<Integer, Deque<RebalanceTask>> moves = new HashMap<>();
+    private final Map<Integer, Integer> active = new HashMap<>();
+    private final Map<String, Integer> scheduled = new HashMap<>();
+    private int queuedRepairs;
+    private int queuedMoves;
+    private int inFlightTransfers;
+    private long plannedTransfers;
+    private long doneTransfers;
+    private long failedTransfers;
+    private long plannedBytes;
+    private long doneBytes;
+    private Set<Integer> lastMembership;
+    private boolean ringSettled;
+
+    public Rebalancer(Controller controller, Index index, PlacementPolicy placement, int R, int timeout) {
+        this.controller = controller;
+        this.index = index;
+        this.placement = placement;
+        this.R = R;
+        this.timeout = timeout;
+        perDStore = Integer.getInteger("controller.rebalance.perDStore", 4);
+    }
+
+    // A full plan is only made once the previous one has drained. While it drains, newly under-replicated
+    // files are still planned and jump the queue. Planning runs outside the scheduler lock so completions
+    // arriving meanwhile are not held up.
+
+    public void rebalance() {
+        synchronized (planning) {
+            boolean idle;
+            Set<String> busy;
+            synchronized (this) {
+                idle = inFlight.isEmpty() && queuedRepairs + queuedMoves == 0;
+                busy = new HashSet<>(scheduled.keySet());
+                var late = new ArrayList<Integer>();
+                for (var e : inFlight.entrySet()) {
+                    if (System.currentTimeMillis() - e.getValue().getSentAt() > timeout) late.add(e.getKey());
+                }
+                if (!late.isEmpty()) System.out.println("Rebalance still waiting for DStores: " + late + ", " + getStatus());
+            }
+            var dStores = controller.getDStorePorts();
+            if (dStores.size() < R || controller.isRecovering()) return;
+            if (!idle && index.getUnderReplicated().isEmpty()) return;
+            var start = System.nanoTime();
+            List<RebalanceTask> tasks;
+            if (!idle) tasks = plan(dStores, busy, false);
+            else if (placement instanceof RingPlacement ring) tasks = planRing(ring, dStores);
+            else tasks = plan(dStores, busy, true);
+            if (tasks.isEmpty()) return;
+            var outbox = new LinkedHashMap<Connection, List<String>>();
+            synchronized (this) {
+                if (idle) {
+                    plannedTransfers = doneTransfers = failedTransfers = plannedBytes = doneBytes = 0;
+                }
+                for (var task : tasks) {
+                    enqueue(task);
+                }
+                System.out.println("Rebalance planned " + tasks.size() + " tasks in " + (System.nanoTime() - start) / 1_000_000 + "ms, " + getStatus());
+                dispatch(outbox);
+            }
+            send(outbox);
+        }
+    }
+
+    public void dStoreLost(int dStore) {
+        var outbox = new LinkedHashMap<Connection, List<String>>();
+        synchronized (this) {
+            lost(dStore, outbox);
+        }
+        send(outbox);
+    }
+
+    private void lost(int dStore, Map<Connection, List<String>> outbox) {
+        var plan = inFlight.remove(dStore);
+        if (plan != null) {
+            for (var task : plan.getTasks()) {
+                release(task);
+                failedTransfers += task.transfers();
+            }
+        }
+        for (var queues : List.of(repairs, moves)) {
+            var lost = queues.remove(dStore);
+            if (lost == null) continue;
+            for (var task : lost) {
+                dequeued(task);
+                unschedule(task);
+            }
+        }
+        active.remove(dStore);
+        dispatch(outbox);
+    }
+
+    // Applies a source DStore's finished batch. A trailing "<n> <file> <port> ..." lists transfers that failed;
+    // those targets are not recorded and the source keeps its copy.
+
+    public void completed(int dStore, String[] args) {
+        var outbox = new LinkedHashMap<Connection, List<String>>();
+        synchronized (this) {
+            completed(dStore, args, outbox);
+        }
+        send(outbox);
+    }
+
+    private void completed(int dStore, String[] args, Map<Connection, List<String>> outbox) {
+        var plan = inFlight.remove(dStore);
+        if (plan == null) return;
+        var failed = new HashSet<String>();
+        var failedFiles = new HashSet<String>();
+        if (args.length > 1) {
+            for (int i = 0, n = Integer.parseInt(args[1]); i < n; i++) {
+                failed.add(args[2 + 2 * i] + " " + args[3 + 2 * i]);
+                failedFiles.add(args[2 + 2 * i]);
+            }
+        }
+        var live = new HashSet<>(controller.getDStorePorts());
+        for (var send : plan.getSends().entrySet()) {
+            var file = index.getFile(send.getKey());
+            for (var target : send.getValue()) {
+                if (failed.contains(send.getKey() + " " + target) || !live.contains(target)) continue;
+                if (file == null || file.getState() != State.STORE_COMPLETE) {
+                    post(outbox, target, "REMOVE " + send.getKey());
+                } else {
+                    index.addReplica(file, target);
+                }
+            }
+        }
+        for (var task : plan.getReconstructs()) {
+            var file = index.getFile(task.filename);
+            if (failed.contains(task.filename + " " + dStore)) continue;
+            if (file == null || file.getState() != State.STORE_COMPLETE) {
+                post(outbox, dStore, "REMOVE " + task.filename);
+            } else {
+                index.addReplica(file, dStore);
+            }
+        }
+        for (var name : plan.getRemoves()) {
+            var file = index.getFile(name);
+            if (file != null && !failedFiles.contains(name)) {
+                index.removeReplica(file, dStore);
+            }
+        }
+        for (var task : plan.getTasks()) {
+            release(task);
+            if (task.isReconstruct()) {
+                if (failed.contains(task.filename + " " + dStore)) {
+                    failedTransfers++;
+                } else {
+                    doneTransfers++;
+                    doneBytes += task.size;
+                }
+            }
+            for (var target : task.targets) {
+                if (failed.contains(task.filename + " " + target)) {
+                    failedTransfers++;
+                } else {
+                    doneTransfers++;
+                    doneBytes += task.size;
+                }
+            }
+        }
+        System.out.println("Rebalance batch completed at DStore: " + dStore + (failed.isEmpty() ? "" : ", failed: " + failed) + ", " + getStatus());
+        dispatch(outbox);
+    }
+
+    public synchronized boolean isScheduled(String filename) {
+        return scheduled.containsKey(filename);
+    }
+
+    // Whether a copy or rebuild of filename on dStore has been sent out and not yet reported complete.
+
+    public synchronized boolean isArriving(String filename, int dStore) {
+        for (var plan : inFlight.values()) {
+            var targets = plan.getSends().get(filename);
+            if (targets != null && targets.contains(dStore)) return true;
+        }
+        var own = inFlight.get(dStore);
+        return own != null && own.getReconstructs().stream().anyMatch(t -> t.filename.equals(filename));
+    }
+
+    public synchronized String getStatus() {
+        return "queued=" + (queuedRepairs + queuedMoves) + " repairs=" + queuedRepairs + " inFlight=" + inFlightTransfers
+                + " done=" + doneTransfers + "/" + plannedTransfers + " failed=" + failedTransfers
+                + " bytes=" + doneBytes + "/" + plannedBytes;
+    }
+
+    // A copy left behind on a DStore that has since gone needs no REMOVE: it is an orphan when the DStore rejoins.
+
+    private void post(Map<Connection, List<String>> outbox, int dStore, String msg) {
+        var connection = controller.connectionFor(dStore);
+        if (connection != null) outbox.computeIfAbsent(connection, c -> new ArrayList<>()).add(msg);
+    }
+
+    // Messages are collected under the scheduler lock and sent once it is released, so a slow DStore link never
+    // holds up completions from the others.
+
+    private void send(Map<Connection, List<String>> outbox) {
+        for (var e : outbox.entrySet()) {
+            controller.sendMessages(e.getValue(), e.getKey());
+        }
+    }
+
+    private void enqueue(RebalanceTask task) {
+        (task.repair ? repairs : moves).computeIfAbsent(task.source, s -> new ArrayDeque<>()).add(task);
+        if (task.repair) queuedRepairs++;
+        else queuedMoves++;
+        scheduled.merge(task.filename, 1, Integer::sum);
+        plannedTransfers += task.transfers();
+        plannedBytes += task.size * task.transfers();
+    }
+
+    private void dequeued(RebalanceTask task) {
+        if (task.repair) queuedRepairs--;
+        else queuedMoves--;
+    }
+
+    private void unschedule(RebalanceTask task) {
+        scheduled.computeIfPresent(task.filename, (f, n) -> n > 1 ? n - 1 : null);
+    }
+
+    private int free(int dStore) {
+        return perDStore - active.getOrDefault(dStore, 0);
+    }
+
+    private void release(RebalanceTask task) {
+        inFlightTransfers -= task.transfers();
+        if (task.isReconstruct()) active.computeIfPresent(task.source, (p, n) -> n > 1 ? n - 1 : null);
+        for (var target : task.targets) {
+            active.computeIfPresent(target, (p, n) -> n > 1 ? n - 1 : null);
+            active.computeIfPresent(task.source, (p, n) -> n > 1 ? n - 1 : null);
+        }
+        unschedule(task);
+    }
+
+    // Fills a batch for every source without one, repairs first, taking each task only if the source and all of
+    // its targets still have free transfer slots. Only the first LOOKAHEAD tasks of a queue are considered, so a
+    // dispatch stays cheap however long the queue is.
+
+    private void dispatch(Map<Connection, List<String>> outbox) {
+        var live = new HashSet<>(controller.getDStorePorts());
+        var batches = new LinkedHashMap<Integer, RebalancePlan>();
+        for (var queues : List.of(repairs, moves)) {
+            for (var it = queues.entrySet().iterator(); it.hasNext(); ) {
+                var e = it.next();
+                var source = e.getKey();
+                if (inFlight.containsKey(source) || !live.contains(source)) continue;
+                var scanned = 0;
+                for (var tasks = e.getValue().iterator(); tasks.hasNext() && scanned < LOOKAHEAD && free(source) > 0; scanned++) {
+                    var task = tasks.next();
+                    if (!task.isReconstruct() && !live.containsAll(task.targets)) {
+                        var wanted = task.targets.size();
+                        task.targets.retainAll(live);
+                        failedTransfers += wanted - task.targets.size();
+                        if (task.targets.isEmpty()) {
+                            tasks.remove();
+                            dequeued(task);
+                            unschedule(task);
+                            continue;
+                        }
+                    }
+                    if (free(source) < task.transfers() || task.targets.stream().anyMatch(t -> free(t) < 1)) continue;
+                    tasks.remove();
+                    dequeued(task);
+                    inFlightTransfers += task.transfers();
+                    if (task.isReconstruct()) active.merge(source, 1, Integer::sum);
+                    for (var target : task.targets) {
+                        active.merge(target, 1, Integer::sum);
+                        active.merge(source, 1, Integer::sum);
+                    }
+                    batches.computeIfAbsent(source, s -> new RebalancePlan()).add(task);
+                }
+                if (e.getValue().isEmpty()) it.remove();
+            }
+        }
+        for (var e : batches.entrySet()) {
+            var connection = controller.connectionFor(e.getKey());
+            if (connection == null) {
+                for (var task : e.getValue().getTasks()) {
+                    release(task);
+                    failedTransfers += task.transfers();
+                }
+                continue;
+            }
+            inFlight.put(e.getKey(), e.getValue());
+            outbox.computeIfAbsent(connection, c -> new ArrayList<>()).add(e.getValue().toMessage());
+            System.out.println("Sent REBALANCE message to: " + e.getKey() + " with " + e.getValue().size() + " operations");
+        }
+    }
+
+    // Repairs copy under-replicated files from the least-used surviving replica to the emptiest DStores, or to
+    // the file's ring successors under consistent hashing; missing shards are rebuilt on those DStores instead.
+    // Balancing then moves files from the fullest to the emptiest DStore until every file count is within
+    // [lo, hi]. Files in busy already have tasks queued.
+
+    List<RebalanceTask> plan(List<Integer> dStores, Set<String> busy, boolean balance) {
+        var tasks = new ArrayList<RebalanceTask>();
+        var bySource = new HashMap<Integer, Map<String, RebalanceTask>>();
+        var counts = new HashMap<Integer, Integer>();
+        var incoming = new HashMap<Integer, Set<String>>();
+        for (var dStore : dStores) {
+            counts.put(dStore, index.filesOn(dStore).size());
+            incoming.put(dStore, new HashSet<>());
+            bySource.put(dStore, new HashMap<>());
+        }
+        var byCount = new TreeSet<Integer>((a, b) -> {
+            var c = Integer.compare(counts.get(a), counts.get(b));
+            return c != 0 ? c : Integer.compare(a, b);
+        });
+        byCount.addAll(dStores);
+
+        for (var name : index.getUnderReplicated()) {
+            var file = index.getFile(name);
+            if (file == null || file.getState() != State.STORE_COMPLETE) {
+                index.getUnderReplicated().remove(name);
+                continue;
+            }
+            if (busy.contains(name)) continue;
+            var holders = new HashSet<>(file.getDStores());
+            holders.retainAll(counts.keySet());
+            if (holders.isEmpty()) {
+                System.err.println("No surviving replica of " + name + " to repair from");
+                continue;
+            }
+            var candidates = placement instanceof RingPlacement ring ? ring.choose(name, file.getStoredSize(), dStores.size()) : new ArrayList<>(byCount);
+            if (file.isErasureCoded()) {
+                if (holders.size() < file.getDataShards()) {
+                    System.err.println("Only " + holders.size() + " shards of " + name + " survive, too few to rebuild");
+                    continue;
+                }
+                var ordinal = 0;
+                for (var dStore : candidates) {
+                    if (holders.size() + ordinal >= file.getWidth()) break;
+                    if (holders.contains(dStore)) continue;
+                    var task = new RebalanceTask(name, dStore, file.getStoredSize(), true);
+                    task.rebuild(file, holders, ordinal++);
+                    tasks.add(task);
+                    bySource.get(dStore).put(name, task);
+                    incoming.get(dStore).add(name);
+                    adjust(byCount, counts, dStore, 1);
+                }
+                continue;
+            }
+            var source = Collections.min(holders, Comparator.comparingInt(h -> bySource.get(h).size()));
+            var task = new RebalanceTask(name, source, file.getSize(), true);
+            for (var dStore : candidates) {
+                if (holders.size() + task.targets.size() >= file.getWidth()) break;
+                if (!holders.contains(dStore)) task.targets.add(dStore);
+            }
+            if (task.targets.isEmpty()) continue;
+            tasks.add(task);
+            bySource.get(source).put(name, task);
+            for (var target : task.targets) {
+                incoming.get(target).add(name);
+                adjust(byCount, counts, target, 1);
+            }
+        }
+        if (!balance) return tasks;
+
+        var total = counts.values().stream().mapToInt(Integer::intValue).sum();
+        var lo = total / dStores.size();
+        var hi = (total + dStores.size() - 1) / dStores.size();
+        var cursors = new HashMap<Long, Iterator<String>>();
+        while (byCount.size() > 1) {
+            var max = byCount.last();
+            var min = byCount.first();
+            if ((counts.get(max) <= hi && counts.get(min) >= lo) || counts.get(max) - counts.get(min) <= 1) break;
+            var file = nextMovable(max, min, bySource.get(max), incoming, cursors);
+            if (file == null) break;
+            var task = new RebalanceTask(file.getFilename(), max, file.getStoredSize(), false);
+            task.targets.add(min);
+            task.remove = true;
+            tasks.add(task);
+            bySource.get(max).put(file.getFilename(), task);
+            incoming.get(min).add(file.getFilename());
+            adjust(byCount, counts, max, -1);
+            adjust(byCount, counts, min, 1);
+        }
+        return tasks;
+    }
+
+    // With consistent hashing every file has a home: the first R DStores clockwise from its hash. After a
+    // membership change only files whose home moved differ, about 1/N of them. Copies go out first; a holder
+    // outside the home drops its copy in a later round, once the home is complete. Each shard outside the home
+    // moves to one missing home DStore; any gaps left over are rebuilt there.
+
+    List<RebalanceTask> planRing(RingPlacement ring, List<Integer> dStores) {
+        var tasks = new ArrayList<RebalanceTask>();
+        var membership = new HashSet<>(dStores);
+        if (membership.equals(lastMembership) && ringSettled && index.getUnderReplicated().isEmpty()) return tasks;
+        lastMembership = membership;
+        for (var file : index.getFiles()) {
+            if (file.getState() != State.STORE_COMPLETE) continue;
+            var home = ring.choose(file.getFilename(), file.getStoredSize(), file.getWidth());
+            var holders = new LinkedHashSet<>(file.getDStores());
+            holders.retainAll(membership);
+            if (holders.isEmpty()) continue;
+            var missing = new ArrayList<Integer>();
+            for (var dStore : home) {
+                if (!holders.contains(dStore)) missing.add(dStore);
+            }
+            var extra = new ArrayList<Integer>();
+            for (var dStore : holders) {
+                if (!home.contains(dStore)) extra.add(dStore);
+            }
+            if (!missing.isEmpty() && file.isErasureCoded()) {
+                for (int i = 0; i < missing.size(); i++) {
+                    var repair = holders.size() < file.getWidth();
+                    if (i < extra.size()) {
+                        var task = new RebalanceTask(file.getFilename(), extra.get(i), file.getStoredSize(), repair);
+                        task.targets.add(missing.get(i));
+                        tasks.add(task);
+                    } else if (holders.size() >= file.getDataShards()) {
+                        var task = new RebalanceTask(file.getFilename(), missing.get(i), file.getStoredSize(), true);
+                        task.rebuild(file, holders, i - extra.size());
+                        tasks.add(task);
+                    }
+                }
+            } else if (!missing.isEmpty()) {
+                var source = extra.isEmpty() ? holders.iterator().next() : extra.get(0);
+                var task = new RebalanceTask(file.getFilename(), source, file.getSize(), holders.size() < file.getWidth());
+                task.targets.addAll(missing);
+                tasks.add(task);
+            } else {
+                for (var dStore : extra) {
+                    var task = new RebalanceTask(file.getFilename(), dStore, file.getSize(), false);
+                    task.remove = true;
+                    tasks.add(task);
+                }
+            }
+        }
+        ringSettled = tasks.isEmpty();
+        return tasks;
+    }
+
+    // Each (source, target) pair walks the source's files at most once over the whole plan: a file skipped for a
+    // pair is on the target already or has been planned away, and cannot become movable for that pair again.
+
+    private DistributedFile nextMovable(int source, int target, Map<String, RebalanceTask> planned, Map<Integer, Set<String>> incoming,
+                                        Map<Long, Iterator<String>> cursors) {
+        var held = index.filesOn(target);
+        var cursor = cursors.computeIfAbsent(((long) source << 32) | target, k -> index.filesOn(source).iterator());
+        while (cursor.hasNext()) {
+            var name = cursor.next();
+            if (held.contains(name) || incoming.get(target).contains(name) || planned.containsKey(name)) continue;
+            var file = index.getFile(name);
+            if (file == null || file.getState() != State.STORE_COMPLETE) continue;
+            return file;
+        }
+        return null;
+    }
+
+    private static void adjust(TreeSet<Integer> byCount, Map<Integer, Integer> counts, int dStore, int delta) {
+        byCount.remove(dStore);
+        counts.merge(dStore, delta, Integer::sum);
+        byCount.add(dStore);
+    }
+}
+
+// One file to copy from source to each target, then optionally drop from source. A task without targets only
+// removes the source's copy. A rebuild task has no targets either: source itself reconstructs a shard from the
+// holders, the ordinal-th of the shard indices missing among them, so concurrent rebuilds pick different shards.
+
+class RebalanceTask {
+
+    final String filename;
+    final int source;
+    final long size;
+    final boolean repair;
+    final Set<Integer> targets = new LinkedHashSet<>();
+    boolean remove;
+    List<Integer> holders;
+    long fileSize;
+    int dataShards;
+    int parityShards;
+    int ordinal;
+
+    public RebalanceTask(String filename, int source, long size, boolean repair) {
+        this.filename = filename;
+        this.source = source;
+        this.size = size;
+        this.repair = repair;
+    }
+
+    public void rebuild(DistributedFile file, Collection<Integer> holders, int ordinal) {
+        this.holders = new ArrayList<>(holders);
+        fileSize = file.getSize();
+        dataShards = file.getDataShards();
+        parityShards = file.getWidth() - file.getDataShards();
+        this.ordinal = ordinal;
+    }
+
+    public boolean isReconstruct() {
+        return holders != null;
+    }
+
+    // Transfer slots the task takes on its source.
+
+    public int transfers() {
+        return isReconstruct() ? 1 : targets.size();
+    }
+}
+
+// The tasks sent to one source DStore in a single REBALANCE message.
+
+class RebalancePlan {
+
+    private final List<RebalanceTask> tasks = new ArrayList<>();
+    private final Map<String, Set<Integer>> sends = new LinkedHashMap<>();
+    private final Set<String> removes = new LinkedHashSet<>();
+    private final List<RebalanceTask> reconstructs = new ArrayList<>();
+    private final long sentAt = System.currentTimeMillis();
+
+    public void add(RebalanceTask task) {
+        tasks.add(task);
+        if (!task.targets.isEmpty()) sends.computeIfAbsent(task.filename, f -> new LinkedHashSet<>()).addAll(task.targets);
+        if (task.remove) removes.add(task.filename);
+        if (task.isReconstruct()) reconstructs.add(task);
+    }
+
+    public List<RebalanceTask> getTasks() {
+        return tasks;
+    }
+
+    public Map<String, Set<Integer>> getSends() {
+        return sends;
+    }
+
+    public Set<String> getRemoves() {
+        return removes;
+    }
+
+    public List<RebalanceTask> getReconstructs() {
+        return reconstructs;
+    }
+
+    public long getSentAt() {
+        return sentAt;
+    }
+
+    public int size() {
+        return sends.values().stream().mapToInt(Set::size).sum() + removes.size() + reconstructs.size();
+    }
+
+    // REBALANCE <files to send> (<file> <n> <port>...)* <files to remove> <file>*
+    //           [<shards to rebuild> (<file> <size> <k> <m> <ordinal> <n> <port>...)*]
+
+    public String toMessage() {
+        var msg = new StringBuilder("REBALANCE ").append(sends.size());
+        for (var send : sends.entrySet()) {
+            msg.append(" ").append(send.getKey()).append(" ").append(send.getValue().size());
+            for (var port : send.getValue()) {
+                msg.append(" ").append(port);
+            }
+        }
+        msg.append(" ").append(removes.size());
+        for (var remove : removes) {
+            msg.append(" ").append(remove);
+        }
+        if (reconstructs.isEmpty()) return msg.toString();
+        msg.append(" ").append(reconstructs.size());
+        for (var task : reconstructs) {
+            msg.append(" ").append(task.filename).append(" ").append(task.fileSize).append(" ").append(task.dataShards)
+                    .append(" ").append(task.parityShards).append(" ").append(task.ordinal).append(" ").append(task.holders.size());
+            for (var port : task.holders) {
+                msg.append(" ").append(port);
+            }
+        }
+        return msg.toString();
+    }
+}
@@ -0,0 +1,186 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Systematic Reed-Solomon code over GF(2^8): k data shards are stored as they are and m parity shards are
+// computed from them, so any k of the k + m shards rebuild the rest. Parity rows come from a Cauchy matrix,
+// which keeps every k x k submatrix of the encoding matrix invertible.
+//
+// Multiplication goes through a full 256 x 256 product table, so the inner loops are a lookup and an XOR per byte
+// with no branches. Each output shard is built over BLOCK bytes at a time, so its block and the input blocks stay
+// in L1 while every input is folded in. Encoding allocates nothing; decoding allocates only a small array per call,
+// plus the inverted matrix the first time each pattern of lost shards is seen.
+
+class ReedSolomon {
+
+    private static final int BLOCK = 16 * 1024;
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        var x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= 0x11d;
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final byte[][] matrix;
+    private final byte[][] parityRows;
+    private final Map<Long, byte[][]> decodeMatrices;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 64) {
+            throw new IllegalArgumentException("Unsupported code: " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        matrix = new byte[dataShards + parityShards][dataShards];
+        for (int i = 0; i < dataShards; i++) {
+            matrix[i][i] = 1;
+        }
+        for (int i = 0; i < parityShards; i++) {
+            for (int j = 0; j < dataShards; j++) {
+                matrix[dataShards + i][j] = inverse((dataShards + i) ^ j);
+            }
+        }
+        parityRows = new byte[parityShards][];
+        System.arraycopy(matrix, dataShards, parityRows, 0, parityShards);
+        decodeMatrices = new ConcurrentHashMap<>();
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    // Fills the parity shards from the data shards over [offset, offset + length) of each.
+
+    public void encode(byte[][] shards, int offset, int length) {
+        code(parityRows, shards, 0, dataShards, shards, dataShards, parityShards, offset, length);
+    }
+
+    // Rebuilds, in place, every shard whose present flag is false from the first k present ones. Buffers for the
+    // missing shards must already be allocated.
+
+    public void decode(byte[][] shards, boolean[] present, int offset, int length) {
+        var total = dataShards + parityShards;
+        var inputs = new byte[total][];
+        var mask = 0L;
+        var count = 0;
+        for (int i = 0; i < total && count < dataShards; i++) {
+            if (present[i]) {
+                inputs[count++] = shards[i];
+                mask |= 1L << i;
+            }
+        }
+        if (count < dataShards) {
+            throw new IllegalArgumentException("Need " + dataShards + " shards to decode, have " + count);
+        }
+
+        // Data first: rows of the inverted submatrix for each missing data shard.
+
+        var inverse = decodeMatrices.computeIfAbsent(mask, this::invertRows);
+        var outputs = new byte[total][];
+        var outputRows = new byte[total][];
+        var n = 0;
+        for (int i = 0; i < dataShards; i++) {
+            if (!present[i]) {
+                outputs[n] = shards[i];
+                outputRows[n++] = inverse[i];
+            }
+        }
+        if (n > 0) code(outputRows, inputs, 0, dataShards, outputs, 0, n, offset, length);
+
+        // Then parity, re-encoded from the now complete data shards.
+
+        n = 0;
+        for (int i = dataShards; i < total; i++) {
+            if (!present[i]) {
+                outputs[n] = shards[i];
+                outputRows[n++] = matrix[i];
+            }
+        }
+        if (n > 0) code(outputRows, shards, 0, dataShards, outputs, 0, n, offset, length);
+    }
+
+    private void code(byte[][] rows, byte[][] inputs, int firstInput, int inputCount, byte[][] outputs, int firstOutput, int outputCount,
+                      int offset, int length) {
+        var end = offset + length;
+        for (int start = offset; start < end; start += BLOCK) {
+            var stop = Math.min(end, start + BLOCK);
+            for (int o = 0; o < outputCount; o++) {
+                var out = outputs[firstOutput + o];
+                var row = rows[o];
+                var table = MUL[row[0] & 0xff];
+                var in = inputs[firstInput];
+                for (int b = start; b < stop; b++) {
+                    out[b] = table[in[b] & 0xff];
+                }
+                for (int i = 1; i < inputCount; i++) {
+                    table = MUL[row[i] & 0xff];
+                    in = inputs[firstInput + i];
+                    for (int b = start; b < stop; b++) {
+                        out[b] ^= table[in[b] & 0xff];
+                    }
+                }
+            }
+        }
+    }
+
+    // Inverts the rows of the encoding matrix picked by mask with Gauss-Jordan elimination.
+
+    private byte[][] invertRows(long mask) {
+        var k = dataShards;
+        var work = new byte[k][2 * k];
+        var r = 0;
+        for (int i = 0; r < k; i++) {
+            if ((mask & (1L << i)) == 0) continue;
+            System.arraycopy(matrix[i], 0, work[r], 0, k);
+            work[r][k + r] = 1;
+            r++;
+        }
+        for (int col = 0; col < k; col++) {
+            var pivot = col;
+            while (work[pivot][col] == 0) pivot++;
+            var tmp = work[pivot];
+            work[pivot] = work[col];
+            work[col] = tmp;
+            var scale = MUL[inverse(work[col][col] & 0xff) & 0xff];
+            for (int j = 0; j < 2 * k; j++) {
+                work[col][j] = scale[work[col][j] & 0xff];
+            }
+            for (int row = 0; row < k; row++) {
+                if (row == col || work[row][col] == 0) continue;
+                var factor = MUL[work[row][col] & 0xff];
+                for (int j = 0; j < 2 * k; j++) {
+                    work[row][j] ^= factor[work[col][j] & 0xff];
+                }
+            }
+        }
+        var res = new byte[k][k];
+        for (int i = 0; i < k; i++) {
+            System.arraycopy(work[i], k, res[i], 0, k);
+        }
+        return res;
+    }
+
+    private static byte inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Picks the replica a LOAD is sent to. Each DStore reports its running client transfers and an EWMA of its
+// LOAD_DATA service time in every heartbeat; loads handed out since that report are added on top, so a burst
+// of LOADs between heartbeats still spreads out. Of two random eligible replicas the cheaper one wins.
+
+class ReplicaSelector {
+
+    private static final double PENALTY = 2;
+
+    private final Map<Integer, Stats> stats;
+
+    public ReplicaSelector() {
+        stats = new ConcurrentHashMap<>();
+    }
+
+    public void report(int dStore, int active, double latency) {
+        var s = stats.computeIfAbsent(dStore, d -> new Stats());
+        s.active = active;
+        s.latency.set(Double.doubleToRawLongBits(Math.max(1, latency)));
+        s.assigned.set(0);
+    }
+
+    // A RELOAD means the client could not load from this DStore; it looks slower until its next report. RELOADs
+    // for one DStore can arrive on several threads at once, so the penalty is applied atomically.
+
+    public void failed(int dStore) {
+        var s = stats.get(dStore);
+        if (s != null) s.latency.updateAndGet(bits -> Double.doubleToRawLongBits(Double.longBitsToDouble(bits) * PENALTY));
+    }
+
+    public void remove(int dStore) {
+        stats.remove(dStore);
+    }
+
+    // Returns null when every replica is excluded.
+
+    public Integer choose(Collection<Integer> replicas, Collection<Integer> exclude) {
+        var eligible = 0;
+        for (var dStore : replicas) {
+            if (!exclude.contains(dStore)) eligible++;
+        }
+        if (eligible == 0) return null;
+        var random = ThreadLocalRandom.current();
+        var a = random.nextInt(eligible);
+        var b = eligible == 1 ? a : (a + 1 + random.nextInt(eligible - 1)) % eligible;
+        Integer first = null;
+        Integer second = null;
+        var i = 0;
+        for (var dStore : replicas) {
+            if (exclude.contains(dStore)) continue;
+            if (i == a) first = dStore;
+            if (i == b) second = dStore;
+            i++;
+        }
+
+        // The replica set may have changed between the two passes.
+
+        if (first == null) first = second;
+        if (first == null) return null;
+        var chosen = second != null && cost(second) < cost(first) ? second : first;
+        stats.computeIfAbsent(chosen, d -> new Stats()).assigned.incrementAndGet();
+        return chosen;
+    }
+
+    private double cost(int dStore) {
+        var s = stats.get(dStore);
+        return s == null ? 1 : (s.active + s.assigned.get() + 1) * Double.longBitsToDouble(s.latency.get());
+    }
+
+    private static class Stats {
+
+        private final AtomicInteger assigned = new AtomicInteger();
+        private volatile int active;
+        private final AtomicLong latency = new AtomicLong(Double.doubleToRawLongBits(1));
+    }
+}
@@ -0,0 +1,69 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Consistent hashing: each DStore owns vnodes points on a ring, and a file goes to the first r distinct
+// DStores clockwise from its hash, so a membership change only moves the files next to that DStore's points.
+
+class RingPlacement implements PlacementPolicy {
+
+    private final int vnodes;
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+
+    public RingPlacement(int vnodes) {
+        this.vnodes = vnodes;
+    }
+
+    @Override
+    public synchronized void addDStore(int port) {
+        for (int i = 0; i < vnodes; i++) {
+            ring.putIfAbsent(hash(port + "#" + i), port);
+        }
+    }
+
+    @Override
+    public synchronized void removeDStore(int port) {
+        for (int i = 0; i < vnodes; i++) {
+            ring.remove(hash(port + "#" + i), port);
+        }
+    }
+
+    @Override
+    public synchronized Set<Integer> choose(String filename, long size, int r) {
+        var res = new LinkedHashSet<Integer>();
+        if (ring.isEmpty()) return res;
+        var start = hash(filename);
+        for (var port : ring.tailMap(start).values()) {
+            if (res.size() == r) return res;
+            res.add(port);
+        }
+        for (var port : ring.headMap(start).values()) {
+            if (res.size() == r) return res;
+            res.add(port);
+        }
+        return res;
+    }
+
+    @Override
+    public void stored(int port, long size) {
+    }
+
+    @Override
+    public void released(int port, long size) {
+    }
+
+    // 64-bit FNV-1a with a final avalanche, so neighbouring names land far apart on the ring.
+
+    static long hash(String key) {
+        var h = 0xcbf29ce484222325L;
+        for (var b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.*;
+
+// Reports how many bytes must move when one DStore joins or leaves, for the consistent-hash ring and for
+// plain hash-mod-N placement, e.g.
+//   java RingSimulator <dStores> <files> <R> <vnodes>
+//   java RingSimulator 10 200000 3 128
+
+public class RingSimulator {
+
+    public static void main(String[] args) {
+        var n = Integer.parseInt(args[0]);
+        var files = Integer.parseInt(args[1]);
+        var r = Integer.parseInt(args[2]);
+        var vnodes = Integer.parseInt(args[3]);
+        var random = new Random(42);
+        var sizes = new long[files];
+        var total = 0L;
+        for (int i = 0; i < files; i++) {
+            sizes[i] = 1024 + random.nextInt(1 << 20);
+            total += sizes[i] * r;
+        }
+        var ports = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++) {
+            ports.add(1300 + i);
+        }
+
+        var ring = new RingPlacement(vnodes);
+        ports.forEach(ring::addDStore);
+        var before = place(ring, files, sizes, r);
+        ring.addDStore(1300 + n);
+        var joined = place(ring, files, sizes, r);
+        ring.removeDStore(1300 + n);
+        ring.removeDStore(1300);
+        var left = place(ring, files, sizes, r);
+
+        var joinedPorts = new ArrayList<>(ports);
+        joinedPorts.add(1300 + n);
+        var leftPorts = new ArrayList<>(ports.subList(1, n));
+
+        System.out.println("dStores=" + n + " files=" + files + " R=" + r + " vnodes=" + vnodes + " stored=" + mb(total));
+        report("ring join", moved(before, joined, sizes), total, 1.0 / (n + 1));
+        report("ring leave", moved(before, left, sizes), total, 1.0 / n);
+        report("mod-N join", moved(modN(ports, files, r), modN(joinedPorts, files, r), sizes), total, 1.0 / (n + 1));
+        report("mod-N leave", moved(modN(ports, files, r), modN(leftPorts, files, r), sizes), total, 1.0 / n);
+        System.out.println("ring spread: " + spread(before, sizes));
+    }
+
+    private static List<Set<Integer>> place(RingPlacement ring, int files, long[] sizes, int r) {
+        var res = new ArrayList<Set<Integer>>(files);
+        for (int i = 0; i < files; i++) {
+            res.add(ring.choose("file" + i, sizes[i], r));
+        }
+        return res;
+    }
+
+    private static List<Set<Integer>> modN(List<Integer> ports, int files, int r) {
+        var res = new ArrayList<Set<Integer>>(files);
+        for (int i = 0; i < files; i++) {
+            var start = (int) Math.floorMod(RingPlacement.hash("file" + i), (long) ports.size());
+            var set = new LinkedHashSet<Integer>();
+            for (int j = 0; j < r && j < ports.size(); j++) {
+                set.add(ports.get((start + j) % ports.size()));
+            }
+            res.add(set);
+        }
+        return res;
+    }
+
+    // Bytes that must be copied: every (file, DStore) replica in the new placement that the old one lacked.
+
+    private static long moved(List<Set<Integer>> before, List<Set<Integer>> after, long[] sizes) {
+        var res = 0L;
+        for (int i = 0; i < before.size(); i++) {
+            for (var dStore : after.get(i)) {
+                if (!before.get(i).contains(dStore)) res += sizes[i];
+            }
+        }
+        return res;
+    }
+
+    private static String spread(List<Set<Integer>> placement, long[] sizes) {
+        var bytes = new TreeMap<Integer, Long>();
+        for (int i = 0; i < placement.size(); i++) {
+            for (var dStore : placement.get(i)) {
+                bytes.merge(dStore, sizes[i], Long::sum);
+            }
+        }
+        var min = Collections.min(bytes.values());
+        var max = Collections.max(bytes.values());
+        return "min=" + mb(min) + " max=" + mb(max) + " max/min=" + String.format("%.3f", (double) max / min);
+    }
+
+    private static void report(String change, long moved, long total, double ideal) {
+        System.out.println(String.format("%-12s moved=%s (%.2f%% of stored, ideal %.2f%%)", change, mb(moved), 100.0 * moved / total, 100 * ideal));
+    }
+
+    private static String mb(long bytes) {
+        return bytes / (1024 * 1024) + "MB";
+    }
+}
\ No newline at end of file
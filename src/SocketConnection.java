@@ -0,0 +1,102 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+class SocketConnection implements Connection {
+
+    private final Socket socket;
+    private PrintWriter out;
+    private BufferedReader in;
+    private volatile boolean framed;
+
+    public SocketConnection(Socket socket) {
+        this.socket = socket;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public synchronized BufferedReader getReader() throws IOException {
+        if (in == null) {
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        }
+        return in;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Locks only this socket so concurrent writers cannot interleave lines. The writer is built once and reused.
+
+    @Override
+    public synchronized void send(String msg) throws IOException {
+        if (framed) {
+            sendFrame(Frames.line(msg));
+            return;
+        }
+        if (out == null) {
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+        }
+        out.println(msg);
+        out.flush();
+        if (out.checkError()) {
+            throw new IOException("Error writing to " + socket);
+        }
+    }
+
+    @Override
+    public synchronized void send(List<String> msgs) throws IOException {
+        if (!framed) {
+            send(String.join("\n", msgs));
+            return;
+        }
+        var frames = new ByteArrayOutputStream();
+        for (var msg : msgs) {
+            var frame = Frames.line(msg);
+            frames.write(frame.array(), 0, frame.limit());
+        }
+        frames.writeTo(socket.getOutputStream());
+    }
+
+    // The peer must not send anything between the line that agreed on framing and its first frame, so the line
+    // reader is left holding no frame bytes.
+
+    @Override
+    public void setFramed() {
+        framed = true;
+    }
+
+    @Override
+    public boolean isFramed() {
+        return framed;
+    }
+
+    @Override
+    public synchronized void sendFrame(ByteBuffer frame) throws IOException {
+        socket.getOutputStream().write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    @Override
+    public void setTimeout(int timeout) throws SocketException {
+        socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public String toString() {
+        return socket.toString();
+    }
+}
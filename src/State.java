@@ -0,0 +1,14 @@
+enum State {
+    STORE_IN_PROGRESS, STORE_COMPLETE, REMOVE_IN_PROGRESS, REMOVE_COMPLETE;
+
+    // A store that never completes may be abandoned straight to REMOVE_COMPLETE.
+
+    public boolean canMoveTo(State next) {
+        return switch (this) {
+            case STORE_IN_PROGRESS -> next == STORE_COMPLETE || next == REMOVE_COMPLETE;
+            case STORE_COMPLETE -> next == REMOVE_IN_PROGRESS;
+            case REMOVE_IN_PROGRESS -> next == REMOVE_COMPLETE;
+            case REMOVE_COMPLETE -> false;
+        };
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+// Downloads a file from all of its replicas at once. LOAD_STRIPED returns the size, chunk size and replicas;
+// one worker per replica then takes chunks off a shared queue and fetches each with a ranged LOAD_DATA straight
+// into its place in the output file, so faster replicas take more chunks. A replica that fails hands its chunk
+// back and drops out. Compares against a plain single-replica LOAD, e.g.
+//   java StripedLoader <cport> <timeout> <file> <rounds>
+
+public class StripedLoader {
+
+    private final int cport;
+    private final int timeout;
+    private final ExecutorService workers;
+    private SocketConnection controller;
+
+    public StripedLoader(int cport, int timeout) {
+        this.cport = cport;
+        this.timeout = timeout;
+        workers = Workers.create();
+    }
+
+    public static void main(String[] args) throws Exception {
+        var loader = new StripedLoader(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+        loader.connect();
+        var client = new Client(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Logger.LoggingType.NO_LOG);
+        client.connect();
+        var out = File.createTempFile("striped", ".bin");
+        out.deleteOnExit();
+        for (int round = 0, rounds = Integer.parseInt(args[3]); round < rounds; round++) {
+            var start = System.nanoTime();
+            var size = client.load(args[2]).length;
+            var single = (System.nanoTime() - start) / 1e9;
+            start = System.nanoTime();
+            loader.load(args[2], out);
+            var striped = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("size=%dMB single=%.0fMB/s striped=%.0fMB/s", size >> 20, size / single / (1 << 20), size / striped / (1 << 20)));
+        }
+        client.disconnect();
+        loader.disconnect();
+        System.exit(0);
+    }
+
+    public void connect() throws IOException {
+        controller = new SocketConnection(new Socket("localhost", cport));
+        controller.setTimeout(timeout);
+    }
+
+    public void disconnect() {
+        controller.close();
+        workers.shutdown();
+    }
+
+    public void load(String filename, File file) throws IOException {
+        String[] reply;
+        synchronized (this) {
+            controller.send("LOAD_STRIPED " + filename);
+            var line = controller.getReader().readLine();
+            if (line == null) throw new IOException("Controller closed the connection");
+            reply = line.split(" ");
+        }
+        switch (reply[0]) {
+            case "STRIPES" -> fetch(filename, file, reply);
+            case "ERROR_FILE_DOES_NOT_EXIST" -> throw new FileDoesNotExistException(filename);
+            case "ERROR_NOT_ENOUGH_DSTORES" -> throw new NotEnoughDstoresException();
+            default -> throw new IOException("Striped load of " + filename + " failed: " + String.join(" ", reply));
+        }
+    }
+
+    // STRIPES <size> <chunk size> <port>...
+
+    private void fetch(String filename, File file, String[] reply) throws IOException {
+        var size = Long.parseLong(reply[1]);
+        var chunkSize = Long.parseLong(reply[2]);
+        var replicas = new ArrayList<Integer>();
+        for (int i = 3; i < reply.length; i++) {
+            replicas.add(Integer.parseInt(reply[i]));
+        }
+        var pending = new ConcurrentLinkedQueue<Long>();
+        for (long offset = 0; offset < size; offset += chunkSize) {
+            pending.add(offset);
+        }
+        var failed = ConcurrentHashMap.<Integer>newKeySet();
+        try (var out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            // transferFrom writes nothing past the end of a file, so it is sized up front.
+
+            if (size > 0) out.write(ByteBuffer.allocate(1), size - 1);
+
+            // A chunk handed back after the other workers finished is picked up by another round.
+
+            while (!pending.isEmpty() && failed.size() < replicas.size()) {
+                var live = new ArrayList<>(replicas);
+                live.removeAll(failed);
+                var done = new CountDownLatch(live.size());
+                for (var port : live) {
+                    workers.execute(() -> {
+                        try {
+                            fetchChunks(port, filename, size, chunkSize, pending, failed, out);
+                        } finally {
+                            done.countDown();
+                        }
+                    });
+                }
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted loading " + filename, e);
+                }
+            }
+        }
+        if (!pending.isEmpty()) {
+            throw new IOException("Striped load of " + filename + " failed: " + pending.size() + " chunks unavailable from " + replicas);
+        }
+    }
+
+    private void fetchChunks(int port, String filename, long size, long chunkSize, Queue<Long> pending, Set<Integer> failed, FileChannel out) {
+        Long offset = null;
+        try (var channel = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            channel.socket().setSoTimeout(timeout);
+            var in = Channels.newChannel(channel.socket().getInputStream());
+            while ((offset = pending.poll()) != null) {
+                var length = Math.min(chunkSize, size - offset);
+                var request = ByteBuffer.wrap(("LOAD_DATA " + filename + " " + offset + " " + length + "\n").getBytes(StandardCharsets.UTF_8));
+                while (request.hasRemaining()) {
+                    channel.write(request);
+                }
+                var received = 0L;
+                while (received < length) {
+                    var n = out.transferFrom(in, offset + received, length - received);
+                    if (n == 0) throw new IOException("DStore " + port + " closed after " + received + " of " + length + " bytes");
+                    received += n;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Striped load of " + filename + " from DStore " + port + " failed: " + e);
+            failed.add(port);
+            if (offset != null) pending.add(offset);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Chooses how accept loops, connection handlers and transfers run, set with -Ddfs.threads=platform|virtual.
+
+class Workers {
+
+    public static ExecutorService create() {
+        if (System.getProperty("dfs.threads", "platform").equals("virtual")) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads unavailable on this JVM, using platform threads: " + e);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
\ No newline at end of file